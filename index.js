@@ -14,6 +14,9 @@
  */
 
 var path = require("path");
+var fs = require("fs");
+var net = require("net");
+var os = require("os");
 var child_process = require('child_process');
 var which = require("which").sync;
 var chromeDriverPath = require("chromedriver").path;
@@ -23,6 +26,88 @@ var ieDriverServer = path.join(__dirname, "IEDriverServer.exe");
 var chromeDebug = path.join(__dirname, "chrome-debug");
 var javaArgs = ["-Dwebdriver.chrome.driver=" + chromeDriverPath, "-Dwebdriver.ie.driver=" + ieDriverServer,
         "-Dseleniumjavarobot.chrome.debugextension=" + chromeDebug, "-jar", jar];
+var DEFAULT_DAEMON_PORT = 7778;
+
+// Asks a running daemon (started with --daemon) to start a session, without
+// starting Java (this is the same protocol as in DaemonClient.java). The logs
+// of the session are written to output, and the session is stopped when input
+// ends. The callback is called with the exit code.
+var connect = function (extraArgs, input, output, errorOutput, callback) {
+    var port = DEFAULT_DAEMON_PORT;
+    var sessionArgs = [];
+    for (var i = 0, l = extraArgs.length; i < l; i++) {
+        var arg = extraArgs[i];
+        if (arg.toLowerCase() == "--port" && i + 1 < l) {
+            port = parseInt(extraArgs[i + 1], 10);
+            i++;
+        } else if (/^-D[^=]+=/i.test(arg)) {
+            // system properties are shared by the whole daemon
+            errorOutput.write("-D options cannot be used with --connect, they must be given to the daemon.\n");
+            callback(1);
+            return;
+        } else if (arg.toLowerCase() != "--connect") {
+            sessionArgs.push(arg);
+        }
+    }
+    var homeDirectory = os.homedir ? os.homedir() : (process.env.HOME || process.env.USERPROFILE);
+    var tokenFile = path.join(homeDirectory, ".selenium-java-robot", "daemon", port + ".token");
+    var token;
+    try {
+        token = fs.readFileSync(tokenFile, "utf8");
+    } catch (e) {
+        errorOutput.write("No daemon is running on port " + port + " for the current user (" + tokenFile + " does not exist).\n");
+        callback(1);
+        return;
+    }
+    var exitCode = null;
+    var socket = net.connect(port, "127.0.0.1");
+    var end = function (code) {
+        if (exitCode === null) {
+            exitCode = code;
+            socket.destroy();
+            callback(code);
+        }
+    };
+    var buffer = "";
+    socket.setEncoding("utf8");
+    // the arguments are counted and encoded, so that empty arguments and line
+    // breaks are kept (as in DaemonClient.java)
+    var lines = ["start " + token, sessionArgs.length].concat(sessionArgs.map(function (arg) {
+        return encodeURIComponent(arg);
+    }));
+    socket.write(lines.join("\n") + "\n", "utf8");
+    socket.on("data", function (data) {
+        var lines = (buffer + data).split("\n");
+        buffer = lines.pop();
+        for (var i = 0, l = lines.length; i < l && exitCode === null; i++) {
+            var line = lines[i].replace(/\r$/, "");
+            if (line.indexOf("#error ") === 0) {
+                errorOutput.write(line.substring(7) + "\n");
+                end(1);
+            } else if (line == "#ended") {
+                end(0);
+            } else if (line != "#started") {
+                output.write(line + "\n");
+            }
+        }
+    });
+    socket.on("error", function (e) {
+        errorOutput.write("Could not connect to the daemon on port " + port + ": " + e + "\n");
+        end(1);
+    });
+    socket.on("close", function () {
+        if (exitCode === null) {
+            errorOutput.write("The connection to the daemon was closed before the end of the session.\n");
+            end(1);
+        }
+    });
+    input.on("end", function () {
+        if (exitCode === null) {
+            socket.write("stop\n");
+        }
+    });
+    input.resume();
+};
 
 module.exports = {
     jar : jar,
@@ -31,5 +116,6 @@ module.exports = {
     exec : function (extraArgs, options) {
         var args = javaArgs.concat(extraArgs || []);
         return child_process.spawn(which("java"), args, options);
-    }
+    },
+    connect : connect
 };
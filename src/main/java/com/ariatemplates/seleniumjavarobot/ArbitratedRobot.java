@@ -0,0 +1,167 @@
+/*
+ * Copyright 2014 Amadeus s.a.s.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ariatemplates.seleniumjavarobot;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.event.InputEvent;
+import java.awt.image.BufferedImage;
+import java.util.HashSet;
+import java.util.Set;
+
+// Robot of one of the browsers sharing a display (see RobotArbiter).
+public class ArbitratedRobot implements IRobot {
+    // Distance from the top of the window at which it is clicked to activate
+    // it (in its title bar):
+    private static final int ACTIVATION_MARGIN = 5;
+
+    private final RobotArbiter arbiter;
+    private final IRobot robot;
+    private final Point activationPoint;
+    // The following fields are guarded by the lock of arbiter:
+    private final Set<Integer> pressedKeys = new HashSet<Integer>();
+    private int pressedButtons;
+    private Point mousePosition;
+
+    public ArbitratedRobot(RobotArbiter arbiter, Rectangle windowBounds) {
+        this.arbiter = arbiter;
+        this.robot = arbiter.robot;
+        this.activationPoint = new Point(windowBounds.x + windowBounds.width / 2, windowBounds.y + ACTIVATION_MARGIN);
+    }
+
+    boolean isHoldingInput() {
+        return pressedButtons != 0 || !pressedKeys.isEmpty();
+    }
+
+    void activate() {
+        robot.mouseMove(activationPoint.x, activationPoint.y);
+        robot.mousePress(InputEvent.BUTTON1_DOWN_MASK);
+        robot.mouseRelease(InputEvent.BUTTON1_DOWN_MASK);
+        if (mousePosition != null) {
+            robot.mouseMove(mousePosition.x, mousePosition.y);
+        }
+    }
+
+    void releaseAll() {
+        for (Integer keycode : pressedKeys) {
+            robot.keyRelease(keycode);
+        }
+        pressedKeys.clear();
+        if (pressedButtons != 0) {
+            robot.mouseRelease(pressedButtons);
+            pressedButtons = 0;
+        }
+    }
+
+    private void checkReleased() {
+        if (!isHoldingInput()) {
+            arbiter.released();
+        }
+    }
+
+    // Keeps the input for a whole call of the page (until endCall, after its
+    // final sync), so that its events are not interleaved with the ones of
+    // other browsers.
+    public void beginCall() {
+        arbiter.lock();
+    }
+
+    public void endCall() {
+        arbiter.unlock();
+    }
+
+    public BufferedImage createScreenCapture(Rectangle screenRect) {
+        // does not change the input, so no need to wait for it
+        return robot.createScreenCapture(screenRect);
+    }
+
+    public void keyPress(int keycode) {
+        arbiter.lock();
+        try {
+            arbiter.acquire(this);
+            robot.keyPress(keycode);
+            pressedKeys.add(keycode);
+        } finally {
+            arbiter.unlock();
+        }
+    }
+
+    public void keyRelease(int keycode) {
+        arbiter.lock();
+        try {
+            arbiter.acquire(this);
+            robot.keyRelease(keycode);
+            pressedKeys.remove(keycode);
+            checkReleased();
+        } finally {
+            arbiter.unlock();
+        }
+    }
+
+    public void mouseMove(int x, int y) {
+        arbiter.lock();
+        try {
+            arbiter.acquire(this);
+            robot.mouseMove(x, y);
+            mousePosition = new Point(x, y);
+        } finally {
+            arbiter.unlock();
+        }
+    }
+
+    public void mousePress(int buttons) {
+        arbiter.lock();
+        try {
+            arbiter.acquire(this);
+            robot.mousePress(buttons);
+            pressedButtons |= buttons;
+        } finally {
+            arbiter.unlock();
+        }
+    }
+
+    public void mouseRelease(int buttons) {
+        arbiter.lock();
+        try {
+            arbiter.acquire(this);
+            robot.mouseRelease(buttons);
+            pressedButtons &= ~buttons;
+            checkReleased();
+        } finally {
+            arbiter.unlock();
+        }
+    }
+
+    public void mouseWheel(int wheelAmt) {
+        arbiter.lock();
+        try {
+            arbiter.acquire(this);
+            robot.mouseWheel(wheelAmt);
+        } finally {
+            arbiter.unlock();
+        }
+    }
+
+    public void sync() {
+        // the events of other browsers cannot be sent before the end of the
+        // sync of the call
+        arbiter.lock();
+        try {
+            robot.sync();
+        } finally {
+            arbiter.unlock();
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2014 Amadeus s.a.s.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ariatemplates.seleniumjavarobot;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Resident process which starts sessions on behalf of clients connected to a
+// local TCP port (see DaemonClient), so that the JVM startup and the creation
+// of the robot and of the driver services are not paid for each session.
+//
+// As the sessions control the mouse and keyboard, only the user who started
+// the daemon can use it: the daemon writes a random token in a file only
+// readable by this user (see getTokenFile), which the client must send.
+//
+// Protocol (one UTF-8 line per item): the client sends "start <token>", then
+// the number of command line arguments of the session, then each argument
+// (URL-encoded, so that empty arguments and line breaks are kept). The daemon sends
+// back the logs of the session, and the "#started", "#ended" or "#error ..."
+// control lines. The session is stopped when the client sends "stop" or
+// closes the connection.
+public class Daemon {
+    static final String START_COMMAND = "start";
+    static final String STOP_COMMAND = "stop";
+    static final String STARTED_REPLY = "#started";
+    static final String ENDED_REPLY = "#ended";
+    static final String ERROR_REPLY = "#error ";
+
+    private final int port;
+    // Factories are kept between sessions (by browser name):
+    private final Map<String, LocalRobotizedBrowserFactory> factories = new HashMap<String, LocalRobotizedBrowserFactory>();
+    private ServerSocket serverSocket;
+    private File tokenFile;
+    private String token;
+    // There can only be one session at a time, as they would share the same
+    // mouse and keyboard:
+    private SeleniumJavaRobot currentSession;
+
+    public Daemon(int port) {
+        this.port = port;
+    }
+
+    public void run() throws IOException {
+        synchronized (this) {
+            serverSocket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+            tokenFile = getTokenFile(port);
+            token = PrivateFiles.createToken(tokenFile);
+        }
+        SeleniumJavaRobot.log("Daemon listening on port " + serverSocket.getLocalPort());
+        while (true) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (SocketException e) {
+                // closed
+                return;
+            }
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        handleConnection(socket);
+                    } catch (IOException e) {
+                    } catch (InterruptedException e) {
+                    } finally {
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                        }
+                    }
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void handleConnection(Socket socket) throws IOException, InterruptedException {
+        final BufferedReader input = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+        PrintStream output = new PrintStream(socket.getOutputStream(), true, "UTF-8");
+        String command = input.readLine();
+        if (command == null || !command.startsWith(START_COMMAND + " ")) {
+            output.println(ERROR_REPLY + "Expected the " + START_COMMAND + " command.");
+            return;
+        }
+        String clientToken = command.substring(START_COMMAND.length() + 1);
+        if (!MessageDigest.isEqual(token.getBytes("UTF-8"), clientToken.getBytes("UTF-8"))) {
+            output.println(ERROR_REPLY + "Invalid token.");
+            return;
+        }
+        List<String> args = new ArrayList<String>();
+        try {
+            int argsCount = Integer.parseInt(String.valueOf(input.readLine()));
+            for (int i = 0; i < argsCount; i++) {
+                String line = input.readLine();
+                if (line == null) {
+                    return;
+                }
+                args.add(URLDecoder.decode(line, "UTF-8"));
+            }
+        } catch (IllegalArgumentException e) {
+            // including NumberFormatException
+            output.println(ERROR_REPLY + "Invalid arguments: " + e);
+            return;
+        }
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        Main.Options options;
+        try {
+            options = Main.parseOptions(args.toArray(new String[args.size()]), output, new PrintStream(errors, true, "UTF-8"));
+        } catch (RuntimeException e) {
+            // such as a NumberFormatException for --port or --sessions
+            output.println(ERROR_REPLY + "Invalid command line options: " + e);
+            return;
+        }
+        if (errors.size() > 0) {
+            output.print(errors.toString("UTF-8"));
+            output.println(ERROR_REPLY + "Invalid command line options.");
+            return;
+        }
+        if (options == null) {
+            // --help or --version
+            output.println(ENDED_REPLY);
+            return;
+        }
+        if (options.daemon || options.connect || options.sessions > 0) {
+            output.println(ERROR_REPLY + "--daemon, --connect and --sessions cannot be used for a session.");
+            return;
+        }
+        if (!options.systemProperties.isEmpty()) {
+            // system properties are shared by the whole daemon
+            output.println(ERROR_REPLY + "-D options cannot be used for a session, they must be given to the daemon.");
+            return;
+        }
+        final SeleniumJavaRobot seleniumJavaRobot = new SeleniumJavaRobot();
+        // the logs of the session are sent to the client
+        seleniumJavaRobot.logTarget = new LogTarget(output, null);
+        synchronized (this) {
+            if (currentSession != null) {
+                output.println(ERROR_REPLY + "Another session is already running.");
+                return;
+            }
+            currentSession = seleniumJavaRobot;
+        }
+        try {
+            options.configure(seleniumJavaRobot);
+            seleniumJavaRobot.robotizedBrowserFactory = getFactory(options.browser, options.syntheticInput);
+            seleniumJavaRobot.start();
+            output.println(STARTED_REPLY);
+            Thread stopThread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        String line;
+                        while ((line = input.readLine()) != null && !STOP_COMMAND.equals(line)) {
+                            // ignore other lines
+                        }
+                    } catch (IOException e) {
+                    }
+                    try {
+                        seleniumJavaRobot.stop();
+                    } catch (InterruptedException e) {
+                    }
+                }
+            });
+            stopThread.setDaemon(true);
+            stopThread.start();
+            seleniumJavaRobot.join();
+            output.println(ENDED_REPLY);
+        } catch (RuntimeException e) {
+            output.println(ERROR_REPLY + e);
+        } finally {
+            synchronized (this) {
+                currentSession = null;
+            }
+        }
+    }
+
+    private synchronized LocalRobotizedBrowserFactory getFactory(String browser, boolean syntheticInput) {
+        String key = browser.toLowerCase() + (syntheticInput ? " synthetic" : "");
+        LocalRobotizedBrowserFactory factory = factories.get(key);
+        if (factory == null) {
+            factory = LocalRobotizedBrowserFactory.createRobotizedWebDriverFactory(browser);
+            factory.setSyntheticInput(syntheticInput);
+            factories.put(key, factory);
+        }
+        return factory;
+    }
+
+    // File containing the token of the daemon listening on the given port.
+    static File getTokenFile(int port) throws IOException {
+        return new File(PrivateFiles.getDirectory("daemon"), port + ".token");
+    }
+
+    public void close() {
+        SeleniumJavaRobot session;
+        synchronized (this) {
+            session = currentSession;
+            if (tokenFile != null) {
+                tokenFile.delete();
+            }
+            if (serverSocket != null) {
+                try {
+                    serverSocket.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        if (session != null) {
+            try {
+                session.stop();
+            } catch (InterruptedException e) {
+            }
+        }
+        synchronized (this) {
+            for (LocalRobotizedBrowserFactory factory : factories.values()) {
+                factory.close();
+            }
+            factories.clear();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2014 Amadeus s.a.s.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ariatemplates.seleniumjavarobot;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URLEncoder;
+import java.util.List;
+
+// Thin client which asks a running daemon (see Daemon) to start a session, and
+// prints its logs. As with a normal run, the session is stopped when the
+// standard input is closed.
+public class DaemonClient {
+
+    // Returns the exit code of the process.
+    public static int run(int port, List<String> sessionArgs, final InputStream inputStream, PrintStream out) throws IOException {
+        File tokenFile = Daemon.getTokenFile(port);
+        if (!tokenFile.isFile()) {
+            System.err.println("No daemon is running on port " + port + " for the current user (" + tokenFile + " does not exist).");
+            return 1;
+        }
+        String token = PrivateFiles.readToken(tokenFile);
+        final Socket socket;
+        try {
+            socket = new Socket(InetAddress.getByName("127.0.0.1"), port);
+        } catch (IOException e) {
+            System.err.println("Could not connect to the daemon on port " + port + ": " + e);
+            return 1;
+        }
+        try {
+            final PrintStream output = new PrintStream(socket.getOutputStream(), true, "UTF-8");
+            BufferedReader input = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            output.println(Daemon.START_COMMAND + " " + token);
+            output.println(sessionArgs.size());
+            for (String arg : sessionArgs) {
+                output.println(URLEncoder.encode(arg, "UTF-8"));
+            }
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (inputStream.read() > -1) {
+                            // do nothing
+                        }
+                    } catch (IOException e) {
+                    }
+                    output.println(Daemon.STOP_COMMAND);
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+            String line;
+            while ((line = input.readLine()) != null) {
+                if (line.startsWith(Daemon.ERROR_REPLY)) {
+                    System.err.println(line.substring(Daemon.ERROR_REPLY.length()));
+                    return 1;
+                } else if (Daemon.ENDED_REPLY.equals(line)) {
+                    return 0;
+                } else if (!Daemon.STARTED_REPLY.equals(line)) {
+                    out.println(line);
+                }
+            }
+            System.err.println("The connection to the daemon was closed before the end of the session.");
+            return 1;
+        } finally {
+            socket.close();
+        }
+    }
+}
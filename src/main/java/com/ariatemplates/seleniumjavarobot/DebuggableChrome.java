@@ -15,14 +15,17 @@
 package com.ariatemplates.seleniumjavarobot;
 
 import java.io.File;
+import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import org.openqa.selenium.By;
 import org.openqa.selenium.Dimension;
+import org.openqa.selenium.OutputType;
 import org.openqa.selenium.Point;
 import org.openqa.selenium.WebDriverException;
 import org.openqa.selenium.chrome.ChromeDriver;
+import org.openqa.selenium.chrome.ChromeDriverService;
 import org.openqa.selenium.chrome.ChromeOptions;
 import org.openqa.selenium.remote.RemoteWebDriver;
 import org.openqa.selenium.support.ui.ExpectedConditions;
@@ -30,9 +33,15 @@ import org.openqa.selenium.support.ui.WebDriverWait;
 
 public class DebuggableChrome implements IBrowser {
 
+    private final ChromeDriverService driverService;
     private final RemoteWebDriver webdriver;
 
     public DebuggableChrome() {
+        this(Collections.<String, String> emptyMap());
+    }
+
+    // The environment is given to chromedriver, which gives it to Chrome.
+    public DebuggableChrome(Map<String, String> environment) {
         ChromeOptions options = new ChromeOptions();
         String debugExtension = System.getProperty("seleniumjavarobot.chrome.debugextension");
         if (debugExtension == null || !new File(debugExtension).isDirectory()) {
@@ -40,7 +49,8 @@ public class DebuggableChrome implements IBrowser {
         }
         options.addArguments("load-extension=" + debugExtension);
         options.addArguments("start-maximized");
-        webdriver = new ChromeDriver(options);
+        driverService = new ChromeDriverService.Builder().usingAnyFreePort().withEnvironment(environment).build();
+        webdriver = new ChromeDriver(driverService, options);
         // waits for the extension page to be loaded:
         (new WebDriverWait(webdriver, 10)).until(ExpectedConditions.presenceOfElementLocated(By.id("selenium-java-robot")));
         webdriver.manage().timeouts().setScriptTimeout(1, TimeUnit.DAYS);
@@ -58,6 +68,12 @@ public class DebuggableChrome implements IBrowser {
         sendCommand("get", url);
     }
 
+    public <X> X getScreenshotAs(OutputType<X> target) {
+        // the tab of webdriver is the one of the extension, not the debugged
+        // one
+        throw new UnsupportedOperationException("Screenshots are not available with the debuggable Chrome.");
+    }
+
     private int curId = 0;
 
     private Object sendCommand(String commandName, Object... args) {
@@ -76,6 +92,14 @@ public class DebuggableChrome implements IBrowser {
         this.webdriver.quit();
     }
 
+    public void kill() {
+        ProcessTreeKiller.Selector chromeProcess = RemoteWebDriverBrowser.getChromeProcess(webdriver);
+        if (chromeProcess != null) {
+            ProcessTreeKiller.kill(chromeProcess);
+        }
+        this.driverService.stop();
+    }
+
     public Point getWindowPosition() {
         return this.webdriver.manage().window().getPosition();
     }
@@ -84,6 +108,18 @@ public class DebuggableChrome implements IBrowser {
         return this.webdriver.manage().window().getSize();
     }
 
+    public void setWindowPosition(Point position) {
+        this.webdriver.manage().window().setPosition(position);
+    }
+
+    public void setWindowSize(Dimension size) {
+        this.webdriver.manage().window().setSize(size);
+    }
+
+    public void maximize() {
+        this.webdriver.manage().window().maximize();
+    }
+
     public void setScriptTimeout(long time, TimeUnit unit) {
         this.webdriver.manage().timeouts().setScriptTimeout(time, unit);
     }
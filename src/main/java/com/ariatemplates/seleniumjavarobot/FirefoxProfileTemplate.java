@@ -0,0 +1,153 @@
+/*
+ * Copyright 2014 Amadeus s.a.s.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ariatemplates.seleniumjavarobot;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.openqa.selenium.Platform;
+import org.openqa.selenium.firefox.FirefoxProfile;
+import org.openqa.selenium.firefox.internal.ProfilesIni;
+
+// Trimmed copy of a Firefox profile, without caches and other files which are
+// useless for tests. FirefoxDriver copies the whole profile each time a
+// browser is started, so starting from a smaller profile is faster. The copy
+// is kept on disk between runs, and it is only done again when the source
+// profile changes (which is detected from the names, sizes and modification
+// times of its files, without reading them). As the profile contains cookies and saved
+// logins, the copy is kept in a directory of the home directory of the user,
+// only accessible to this user.
+public class FirefoxProfileTemplate {
+    private static final Set<String> EXCLUDED_FILES = new HashSet<String>(Arrays.asList("cache2", "Cache", "startupCache", "OfflineCache",
+            "thumbnails", "crashes", "minidumps", "sessionstore.js", "sessionstore.bak", "sessionstore-backups", "datareporting",
+            "saved-telemetry-pings", "healthreport", "healthreport.sqlite", "places.sqlite", "places.sqlite-wal", "favicons.sqlite",
+            "webappsstore.sqlite", "lock", "parent.lock", ".parentlock"));
+    private static final String STAMP_FILE = ".selenium-java-robot-source";
+
+    private static final String TEMPLATES_DIRECTORY = "firefox-profiles";
+
+    private final File sourceDirectory;
+    private final String templateName;
+
+    public FirefoxProfileTemplate(File sourceDirectory) {
+        this.sourceDirectory = sourceDirectory;
+        this.templateName = Integer.toHexString(sourceDirectory.getAbsolutePath().hashCode());
+    }
+
+    // Returns the template for the given Firefox profile name, or null if
+    // there is no such profile.
+    public static FirefoxProfileTemplate fromProfileName(String profileName) {
+        File sourceDirectory = new ProfilesIni() {
+            public File getProfileDirectory(String profileName) {
+                return readProfiles(locateAppDataDirectory(Platform.getCurrent())).get(profileName);
+            }
+        }.getProfileDirectory(profileName);
+        return sourceDirectory == null ? null : new FirefoxProfileTemplate(sourceDirectory);
+    }
+
+    public FirefoxProfile createProfile() {
+        long startTime = System.currentTimeMillis();
+        FirefoxProfile firefoxProfile = new FirefoxProfile(getTemplateDirectory());
+        SeleniumJavaRobot.log(String.format("Firefox profile prepared in %d ms.", System.currentTimeMillis() - startTime));
+        return firefoxProfile;
+    }
+
+    private synchronized File getTemplateDirectory() {
+        try {
+            File templateDirectory = new File(PrivateFiles.getDirectory(TEMPLATES_DIRECTORY), templateName);
+            File stampFile = new File(templateDirectory, STAMP_FILE);
+            String sourceStamp = getSourceStamp();
+            if (stampFile.isFile() && sourceStamp.equals(FileUtils.readFileToString(stampFile, "UTF-8"))) {
+                return templateDirectory;
+            }
+            SeleniumJavaRobot.log("Creating a copy of the Firefox profile from " + sourceDirectory + " in " + templateDirectory);
+            // the copy is done in a temporary directory, so that an
+            // incomplete copy is never used
+            File tempDirectory = new File(templateDirectory.getPath() + "-" + System.nanoTime());
+            if (!tempDirectory.mkdir() || !PrivateFiles.restrictToOwner(tempDirectory)) {
+                throw new IOException("Could not create " + tempDirectory);
+            }
+            FileUtils.copyDirectory(sourceDirectory, tempDirectory, new FileFilter() {
+                public boolean accept(File file) {
+                    return !(sourceDirectory.equals(file.getParentFile()) && EXCLUDED_FILES.contains(file.getName()));
+                }
+            });
+            FileUtils.writeStringToFile(new File(tempDirectory, STAMP_FILE), sourceStamp, "UTF-8");
+            FileUtils.deleteDirectory(templateDirectory);
+            if (!tempDirectory.renameTo(templateDirectory)) {
+                FileUtils.deleteDirectory(tempDirectory);
+                throw new IOException("Could not rename " + tempDirectory + " to " + templateDirectory);
+            }
+            return templateDirectory;
+        } catch (IOException e) {
+            SeleniumJavaRobot.log("Failed to create the copy of the Firefox profile, using it directly: " + e);
+            return sourceDirectory;
+        }
+    }
+
+    // Hash of the names, sizes and modification times of the files of the
+    // source profile which are copied.
+    private String getSourceStamp() throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            addToStamp(digest, sourceDirectory, "");
+            return Hex.encodeHexString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void addToStamp(MessageDigest digest, File directory, String path) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Could not list " + directory);
+        }
+        // the order of listFiles is not specified
+        Arrays.sort(files);
+        for (File file : files) {
+            if (directory.equals(sourceDirectory) && EXCLUDED_FILES.contains(file.getName())) {
+                continue;
+            }
+            String filePath = path + "/" + file.getName();
+            digest.update(toBytes(filePath));
+            if (file.isDirectory()) {
+                digest.update((byte) 1);
+                addToStamp(digest, file, filePath);
+            } else {
+                digest.update((byte) 0);
+                digest.update(toBytes(file.length() + ":" + file.lastModified()));
+            }
+        }
+        // end of the directory
+        digest.update((byte) 2);
+    }
+
+    private static byte[] toBytes(String string) {
+        try {
+            return string.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -19,15 +19,26 @@ import java.util.concurrent.TimeUnit;
 import org.openqa.selenium.Dimension;
 import org.openqa.selenium.JavascriptExecutor;
 import org.openqa.selenium.Point;
+import org.openqa.selenium.TakesScreenshot;
 
-public interface IBrowser extends JavascriptExecutor {
+public interface IBrowser extends JavascriptExecutor, TakesScreenshot {
     public void quit();
 
+    // Forcefully terminates the browser and its driver, without waiting for a
+    // clean shutdown:
+    public void kill();
+
     public void get(String url);
 
     public Point getWindowPosition();
 
     public Dimension getWindowSize();
 
+    public void setWindowPosition(Point position);
+
+    public void setWindowSize(Dimension size);
+
+    public void maximize();
+
     public void setScriptTimeout(long time, TimeUnit unit);
 }
@@ -0,0 +1,24 @@
+/*
+ * Copyright 2014 Amadeus s.a.s.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ariatemplates.seleniumjavarobot;
+
+// State of the call being executed, checked regularly by the methods which
+// last some time (such as smoothMouseMove), so that they stop as soon as the
+// page gives up the call.
+public interface ICallState {
+    // Returns true if the deadline of the call is reached, or if the page
+    // cancelled it.
+    public boolean isAbandoned();
+}
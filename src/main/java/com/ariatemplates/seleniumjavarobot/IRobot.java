@@ -31,4 +31,8 @@ public interface IRobot {
     public void mouseRelease(int buttons);
 
     public void mouseWheel(int wheelAmt);
+
+    // Waits until the previous events are executed (some robots send them
+    // without waiting), and throws an exception if one of them failed.
+    public void sync();
 }
\ No newline at end of file
@@ -16,4 +16,8 @@ package com.ariatemplates.seleniumjavarobot;
 
 public interface IRobotizedBrowserFactory {
     public RobotizedBrowser createRobotizedBrowser();
+
+    // Creates a spare browser (see StandbyBrowser), whose window is out of the
+    // screen (and not placed with placeWindow) until it is used.
+    public RobotizedBrowser createStandbyRobotizedBrowser();
 }
@@ -54,4 +54,8 @@ public class LocalRobot implements IRobot {
         robot.mouseWheel(wheelAmt);
     }
 
+    public void sync() {
+        // events are executed synchronously
+    }
+
 }
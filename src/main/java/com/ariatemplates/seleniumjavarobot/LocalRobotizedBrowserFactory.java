@@ -15,24 +15,58 @@
 package com.ariatemplates.seleniumjavarobot;
 
 import java.awt.AWTException;
+import java.awt.Rectangle;
 import java.awt.Robot;
 import java.awt.Toolkit;
 import java.awt.event.KeyEvent;
-import java.lang.reflect.Constructor;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.exec.OS;
-import org.openqa.selenium.chrome.ChromeDriver;
+import org.apache.commons.io.IOUtils;
+import org.openqa.selenium.Capabilities;
+import org.openqa.selenium.Platform;
+import org.openqa.selenium.chrome.ChromeDriverService;
+import org.openqa.selenium.chrome.ChromeOptions;
+import org.openqa.selenium.firefox.FirefoxBinary;
 import org.openqa.selenium.firefox.FirefoxDriver;
 import org.openqa.selenium.firefox.FirefoxProfile;
-import org.openqa.selenium.firefox.internal.ProfilesIni;
 import org.openqa.selenium.ie.InternetExplorerDriver;
+import org.openqa.selenium.ie.InternetExplorerDriverService;
 import org.openqa.selenium.remote.BrowserType;
+import org.openqa.selenium.remote.DesiredCapabilities;
 import org.openqa.selenium.remote.RemoteWebDriver;
+import org.openqa.selenium.remote.service.DriverService;
 import org.openqa.selenium.safari.SafariDriver;
 
+import com.ariatemplates.seleniumjavarobot.capture.FlightRecorder;
+import com.ariatemplates.seleniumjavarobot.remote.ProcessRobot;
+import com.ariatemplates.seleniumjavarobot.remote.RemoteRobot;
+import com.ariatemplates.seleniumjavarobot.xtest.XTestRobot;
+
 public abstract class LocalRobotizedBrowserFactory implements IRobotizedBrowserFactory {
 
     private IRobot robot;
+    // Robot used by the flight recorder (see getRecorderRobot):
+    private IRobot recorderRobot;
+    // X display on which browsers are started (null for the display of the
+    // current process):
+    private String display;
+    // Screen area of the browser windows (null to maximize them):
+    private Rectangle windowBounds;
+    // Shares the robot with other factories whose browsers are on the same
+    // display (null if the robot is not shared):
+    private RobotArbiter robotArbiter;
+    // Dispatches the events inside the page instead of using a robot (see
+    // SyntheticRobot):
+    private boolean syntheticInput;
 
     private static void numLockStateWorkaround() {
         try {
@@ -46,13 +80,107 @@ public abstract class LocalRobotizedBrowserFactory implements IRobotizedBrowserF
         }
     }
 
-    public LocalRobotizedBrowserFactory() {
+    // The robot implementation can be chosen with the seleniumjavarobot.robot
+    // system property: awt (java.awt.Robot, the default) or xtest (Linux only).
+    private static boolean useXTestRobot() {
+        return "xtest".equalsIgnoreCase(System.getProperty("seleniumjavarobot.robot"));
+    }
+
+    // Returns the robot of the display of the current process, or the one of
+    // the robot agent configured with the seleniumjavarobot.robot.agent system
+    // property (host:port) and the seleniumjavarobot.robot.agent.tokenfile
+    // system property (file containing the token of the agent).
+    static IRobot createDefaultRobot() {
+        String agentAddress = System.getProperty("seleniumjavarobot.robot.agent");
+        if (agentAddress != null) {
+            String tokenFile = System.getProperty("seleniumjavarobot.robot.agent.tokenfile");
+            if (tokenFile == null) {
+                throw new RuntimeException("seleniumjavarobot.robot.agent.tokenfile must be set to use a robot agent.");
+            }
+            String token;
+            try {
+                token = PrivateFiles.readToken(new File(tokenFile));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            SeleniumJavaRobot.log("Connecting to the robot agent on " + agentAddress);
+            return RemoteRobot.fromAddress(agentAddress, token);
+        }
+        if (useXTestRobot()) {
+            return new XTestRobot(null);
+        }
+        IRobot robot;
         try {
             robot = new LocalRobot(new Robot());
         } catch (AWTException e) {
             throw new RuntimeException(e);
         }
         numLockStateWorkaround();
+        return robot;
+    }
+
+    private synchronized IRobot getRobot() {
+        if (robot == null) {
+            if (robotArbiter != null) {
+                robot = new ArbitratedRobot(robotArbiter, windowBounds);
+            } else if (display != null) {
+                // XTestRobot can use any display, java.awt.Robot needs another
+                // process
+                robot = useXTestRobot() ? new XTestRobot(display) : new ProcessRobot(display);
+            } else {
+                robot = createDefaultRobot();
+            }
+        }
+        return robot;
+    }
+
+    // Returns a robot for the same display as getRobot, but with its own
+    // connection (or java.awt.Robot): robots execute captures and input events
+    // one at a time, so the periodic captures of the flight recorder would
+    // otherwise delay the input events.
+    private synchronized IRobot getRecorderRobot() {
+        if (recorderRobot == null) {
+            if (display != null) {
+                recorderRobot = useXTestRobot() ? new XTestRobot(display) : new ProcessRobot(display);
+            } else {
+                recorderRobot = createDefaultRobot();
+            }
+        }
+        return recorderRobot;
+    }
+
+    // Places the browsers in the given area of the screen, instead of
+    // maximizing them. Must be called before creating any browser.
+    public synchronized void setWindowBounds(Rectangle windowBounds) {
+        this.windowBounds = windowBounds;
+    }
+
+    // Makes the browsers share the robot of other factories, through the
+    // given arbiter. Must be called after setWindowBounds and before creating
+    // any browser.
+    public synchronized void setRobotArbiter(RobotArbiter robotArbiter) {
+        if (windowBounds == null) {
+            throw new IllegalStateException("Browsers sharing a robot cannot be maximized.");
+        }
+        this.robotArbiter = robotArbiter;
+    }
+
+    // Makes each browser use its own SyntheticRobot. Must be called before
+    // creating any browser.
+    public synchronized void setSyntheticInput(boolean syntheticInput) {
+        this.syntheticInput = syntheticInput;
+    }
+
+    // Environment variables to be given to the browser process.
+    protected Map<String, String> getBrowserEnvironment() {
+        if (display == null) {
+            return Collections.emptyMap();
+        }
+        return Collections.singletonMap("DISPLAY", display);
+    }
+
+    protected boolean supportsDisplay() {
+        return false;
     }
 
     protected RemoteWebDriver createWebDriver() {
@@ -60,50 +188,261 @@ public abstract class LocalRobotizedBrowserFactory implements IRobotizedBrowserF
     }
 
     protected IBrowser createBrowser() {
-        RemoteWebDriver driver = createWebDriver();
-        driver.manage().window().maximize();
-        return new RemoteWebDriverBrowser(driver);
+        return new RemoteWebDriverBrowser(createWebDriver());
+    }
+
+    // Creates a browser whose window is out of the screen from the start, if
+    // the browser allows it (by default, it is created as usual and then
+    // moved out of the screen).
+    protected IBrowser createStandbyBrowser() {
+        return createBrowser();
     }
 
     public RobotizedBrowser createRobotizedBrowser() {
-        return new RobotizedBrowser(robot, createBrowser());
+        return createRobotizedBrowser(false);
+    }
+
+    public RobotizedBrowser createStandbyRobotizedBrowser() {
+        return createRobotizedBrowser(true);
+    }
+
+    private RobotizedBrowser createRobotizedBrowser(boolean standby) {
+        Rectangle windowBounds;
+        boolean syntheticInput;
+        synchronized (this) {
+            windowBounds = this.windowBounds;
+            syntheticInput = this.syntheticInput;
+        }
+        // the state of the synthetic mouse and keyboard is specific to each
+        // browser
+        IRobot robot = syntheticInput ? new SyntheticRobot() : getRobot();
+        IRobot recorderRobot = !syntheticInput && FlightRecorder.isEnabled() ? getRecorderRobot() : null;
+        IBrowser browser = standby ? createStandbyBrowser() : createBrowser();
+        RobotizedBrowser robotizedBrowser = new RobotizedBrowser(robot, browser, windowBounds, recorderRobot);
+        if (syntheticInput) {
+            // screen captures use screenshots of the browser
+            ((SyntheticRobot) robot).setBrowser(robotizedBrowser.browser);
+        }
+        try {
+            if (standby) {
+                // placed (and maximized) only when it is used
+                robotizedBrowser.browser.setWindowPosition(StandbyBrowser.OFFSCREEN_POSITION);
+            } else {
+                robotizedBrowser.placeWindow();
+            }
+        } catch (RuntimeException e) {
+            robotizedBrowser.stop();
+            throw e;
+        }
+        return robotizedBrowser;
+    }
+
+    // Releases the resources kept by the factory between browsers.
+    public synchronized void close() {
+        if (robot instanceof Closeable) {
+            IOUtils.closeQuietly((Closeable) robot);
+            robot = null;
+        }
+        if (recorderRobot instanceof Closeable) {
+            IOUtils.closeQuietly((Closeable) recorderRobot);
+            recorderRobot = null;
+        }
     }
 
     public static class LocalFirefox extends LocalRobotizedBrowserFactory {
         private final FirefoxProfile firefoxProfile;
+        private final FirefoxProfileTemplate firefoxProfileTemplate;
 
         public LocalFirefox(FirefoxProfile firefoxProfile) {
             this.firefoxProfile = firefoxProfile;
+            this.firefoxProfileTemplate = null;
+        }
+
+        public LocalFirefox(FirefoxProfileTemplate firefoxProfileTemplate) {
+            this.firefoxProfile = null;
+            this.firefoxProfileTemplate = firefoxProfileTemplate;
         }
 
         @Override
         public RemoteWebDriver createWebDriver() {
-            return new FirefoxDriver(firefoxProfile);
+            FirefoxBinary firefoxBinary = new FirefoxBinary();
+            for (Map.Entry<String, String> entry : getBrowserEnvironment().entrySet()) {
+                firefoxBinary.setEnvironmentProperty(entry.getKey(), entry.getValue());
+            }
+            return new FirefoxDriver(firefoxBinary, firefoxProfileTemplate != null ? firefoxProfileTemplate.createProfile() : firefoxProfile);
+        }
+
+        @Override
+        protected boolean supportsDisplay() {
+            return true;
         }
     }
 
-    public static class LocalBrowser<T extends RemoteWebDriver> extends LocalRobotizedBrowserFactory {
-        private final Constructor<T> webdriverClass;
+    // Browsers whose driver is a separate process (such as chromedriver). The
+    // driver service is shared by all the browsers created by the factory, and
+    // it is only restarted when it dies, so that its startup time is not paid
+    // each time a browser is started. The browser processes must be told apart
+    // (see getBrowserProcess), so that killing a hung browser does not
+    // affect the other browsers using the driver service.
+    public static abstract class LocalDriverServiceBrowser<S extends DriverService> extends LocalRobotizedBrowserFactory {
+        private static final int HEALTH_CHECK_TIMEOUT = 2000;
+        private S driverService;
 
-        public LocalBrowser(Class<T> webdriverClass) {
+        protected abstract S createDriverService();
+
+        protected abstract Capabilities getCapabilities();
+
+        // Selects the browser process (see RemoteWebDriverBrowser).
+        protected abstract ProcessTreeKiller.Selector getBrowserProcess(RemoteWebDriver driver);
+
+        private synchronized S getDriverService() {
+            if (driverService != null && !isHealthy(driverService)) {
+                SeleniumJavaRobot.log("The driver service is not responding, restarting it.");
+                driverService.stop();
+                driverService = null;
+            }
+            if (driverService == null) {
+                long startTime = System.currentTimeMillis();
+                S newDriverService = createDriverService();
+                try {
+                    newDriverService.start();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                SeleniumJavaRobot.log(String.format("Driver service started in %d ms.", System.currentTimeMillis() - startTime));
+                driverService = newDriverService;
+            }
+            return driverService;
+        }
+
+        private static boolean isHealthy(DriverService driverService) {
+            if (!driverService.isRunning()) {
+                return false;
+            }
             try {
-                this.webdriverClass = webdriverClass.getConstructor();
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+                HttpURLConnection connection = (HttpURLConnection) new URL(driverService.getUrl(), "/status").openConnection();
+                connection.setConnectTimeout(HEALTH_CHECK_TIMEOUT);
+                connection.setReadTimeout(HEALTH_CHECK_TIMEOUT);
+                try {
+                    return connection.getResponseCode() == HttpURLConnection.HTTP_OK;
+                } finally {
+                    connection.disconnect();
+                }
+            } catch (IOException e) {
+                return false;
             }
         }
 
+        // Capabilities of a browser whose window is out of the screen from the
+        // start (see createStandbyBrowser).
+        protected Capabilities getStandbyCapabilities() {
+            return getCapabilities();
+        }
+
         @Override
-        public RemoteWebDriver createWebDriver() {
-            try {
-                return webdriverClass.newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+        protected IBrowser createBrowser() {
+            return createBrowser(getCapabilities());
+        }
+
+        @Override
+        protected IBrowser createStandbyBrowser() {
+            return createBrowser(getStandbyCapabilities());
+        }
+
+        private IBrowser createBrowser(Capabilities capabilities) {
+            S driverService = getDriverService();
+            // RemoteWebDriver (contrary to ChromeDriver and
+            // InternetExplorerDriver) does not stop the driver service on quit
+            RemoteWebDriver driver = new RemoteWebDriver(driverService.getUrl(), capabilities);
+            // killing a hung browser only kills its own processes, the driver
+            // service keeps serving the other browsers
+            return new RemoteWebDriverBrowser(driver, getBrowserProcess(driver));
+        }
+
+        @Override
+        public synchronized void close() {
+            if (driverService != null) {
+                driverService.stop();
+                driverService = null;
             }
+            super.close();
+        }
+    }
+
+    public static class LocalChrome extends LocalDriverServiceBrowser<ChromeDriverService> {
+        @Override
+        protected ChromeDriverService createDriverService() {
+            // chromedriver gives its environment to Chrome
+            return new ChromeDriverService.Builder().usingAnyFreePort().withEnvironment(getBrowserEnvironment()).build();
+        }
+
+        @Override
+        protected Capabilities getCapabilities() {
+            return DesiredCapabilities.chrome();
+        }
+
+        @Override
+        protected Capabilities getStandbyCapabilities() {
+            ChromeOptions options = new ChromeOptions();
+            options.addArguments("window-position=" + StandbyBrowser.OFFSCREEN_POSITION.x + "," + StandbyBrowser.OFFSCREEN_POSITION.y);
+            DesiredCapabilities capabilities = DesiredCapabilities.chrome();
+            capabilities.setCapability(ChromeOptions.CAPABILITY, options);
+            return capabilities;
+        }
+
+        @Override
+        protected ProcessTreeKiller.Selector getBrowserProcess(RemoteWebDriver driver) {
+            return RemoteWebDriverBrowser.getChromeProcess(driver);
+        }
+
+        @Override
+        protected boolean supportsDisplay() {
+            return true;
+        }
+    }
+
+    // Internet Explorer processes cannot be told apart when they share an
+    // IEDriverServer, so each browser has its own one, killed with it (as a
+    // process tree) if it hangs.
+    public static class LocalInternetExplorer extends LocalRobotizedBrowserFactory {
+        @Override
+        protected IBrowser createBrowser() {
+            InternetExplorerDriverService driverService = InternetExplorerDriverService.createDefaultService();
+            // InternetExplorerDriver stops the driver service on quit
+            InternetExplorerDriver driver = new InternetExplorerDriver(driverService, DesiredCapabilities.internetExplorer());
+            // the port is only used by this IEDriverServer
+            return new RemoteWebDriverBrowser(driver, ProcessTreeKiller.byArgument("IEDriverServer", "--port=" + driverService.getUrl().getPort()));
         }
     }
 
     public static class LocalSafari extends LocalRobotizedBrowserFactory {
+        private static final String SAFARI_EXECUTABLE = OS.isFamilyMac() ? "Safari.app/Contents/MacOS/Safari" : "Safari.exe";
+
+        @Override
+        protected IBrowser createBrowser() {
+            return createBrowser(false);
+        }
+
+        @Override
+        protected IBrowser createStandbyBrowser() {
+            return createBrowser(true);
+        }
+
+        private IBrowser createBrowser(boolean standby) {
+            // the Safari processes started by the driver are the ones which
+            // did not exist before (so that the other windows of the user are
+            // not killed)
+            Set<String> previousProcesses = ProcessTreeKiller.findByExecutable(SAFARI_EXECUTABLE);
+            // the standby browser is not put in the foreground
+            RemoteWebDriver driver = standby ? new SafariDriver() : createWebDriver();
+            Set<String> processes = ProcessTreeKiller.findByExecutable(SAFARI_EXECUTABLE);
+            processes.removeAll(previousProcesses);
+            if (processes.isEmpty()) {
+                SeleniumJavaRobot.log("The Safari process could not be identified, it will not be killed if it hangs.");
+            }
+            return new RemoteWebDriverBrowser(driver, processes.isEmpty() ? null : ProcessTreeKiller.byPids(processes));
+        }
+
         @Override
         public RemoteWebDriver createWebDriver() {
             SafariDriver safari = new SafariDriver();
@@ -123,29 +462,84 @@ public abstract class LocalRobotizedBrowserFactory implements IRobotizedBrowserF
     public static class LocalDebuggableChrome extends LocalRobotizedBrowserFactory {
         @Override
         protected IBrowser createBrowser() {
-            return new DebuggableChrome();
+            return new DebuggableChrome(getBrowserEnvironment());
+        }
+
+        @Override
+        protected boolean supportsDisplay() {
+            return true;
+        }
+    }
+
+    // Browsers started by a Selenium server (or a driver) on the machine of
+    // the robot agent, so that the robot sends its events to the screen
+    // displaying the browser. The browser processes are not on this machine,
+    // so a hung browser cannot be killed from here.
+    public static class RemoteAgentBrowser extends LocalRobotizedBrowserFactory {
+        private final URL webDriverUrl;
+        private final Capabilities capabilities;
+
+        public RemoteAgentBrowser(URL webDriverUrl, String browser) {
+            this.webDriverUrl = webDriverUrl;
+            this.capabilities = new DesiredCapabilities(browser, "", Platform.ANY);
+        }
+
+        @Override
+        protected RemoteWebDriver createWebDriver() {
+            return new RemoteWebDriver(webDriverUrl, capabilities);
         }
     }
 
     public static LocalRobotizedBrowserFactory createRobotizedWebDriverFactory(String browser) {
+        return createRobotizedWebDriverFactory(browser, null);
+    }
+
+    // Creates a factory whose browsers are started on the given X display
+    // (and driven by a robot on that display), or on the display of the
+    // current process if display is null.
+    public static LocalRobotizedBrowserFactory createRobotizedWebDriverFactory(String browser, String display) {
+        String agentWebDriver = System.getProperty("seleniumjavarobot.robot.agent.webdriver");
+        LocalRobotizedBrowserFactory factory = agentWebDriver != null ? createRemoteAgentFactory(browser, agentWebDriver) : createLocalFactory(browser);
+        if (display != null && !factory.supportsDisplay()) {
+            throw new RuntimeException("Starting " + browser + " on another display is not supported.");
+        }
+        factory.display = display;
+        return factory;
+    }
+
+    private static LocalRobotizedBrowserFactory createRemoteAgentFactory(String browser, String webDriverUrl) {
+        if (System.getProperty("seleniumjavarobot.robot.agent") == null) {
+            // the robot must be on the machine of the browser
+            throw new RuntimeException("seleniumjavarobot.robot.agent.webdriver requires seleniumjavarobot.robot.agent to be set.");
+        }
+        try {
+            return new RemoteAgentBrowser(new URL(webDriverUrl), browser);
+        } catch (MalformedURLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static LocalRobotizedBrowserFactory createLocalFactory(String browser) {
         if (BrowserType.FIREFOX.equalsIgnoreCase(browser)) {
-            FirefoxProfile firefoxProfile = null;
+            FirefoxProfileTemplate firefoxProfileTemplate = null;
             String firefoxProfileProperty = System.getProperty("webdriver.firefox.profile");
             if (firefoxProfileProperty == null) {
-                ProfilesIni allProfiles = new ProfilesIni();
                 // Use the default profile to make extensions available,
                 // and especially to ease debugging with Firebug
-                firefoxProfile = allProfiles.getProfile("default");
+                firefoxProfileTemplate = FirefoxProfileTemplate.fromProfileName("default");
+            }
+            if (firefoxProfileTemplate == null) {
+                return new LocalFirefox((FirefoxProfile) null);
             }
-            return new LocalFirefox(firefoxProfile);
+            return new LocalFirefox(firefoxProfileTemplate);
         } else if (BrowserType.SAFARI.equalsIgnoreCase(browser)) {
             return new LocalSafari();
         } else if (BrowserType.CHROME.equalsIgnoreCase(browser)) {
-            return new LocalBrowser<ChromeDriver>(ChromeDriver.class);
+            return new LocalChrome();
         } else if ("chrome-debug".equalsIgnoreCase(browser)) {
             return new LocalDebuggableChrome();
         } else if (BrowserType.IE.equalsIgnoreCase(browser)) {
-            return new LocalBrowser<InternetExplorerDriver>(InternetExplorerDriver.class);
+            return new LocalInternetExplorer();
         } else {
             throw new RuntimeException("Unknown browser value: " + browser);
         }
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2014 Amadeus s.a.s.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ariatemplates.seleniumjavarobot;
+
+import java.io.PrintStream;
+
+// Destination of the logs of a session: they are always written to
+// System.out, and also to output if it is not null (such as the connection of
+// a daemon client), with a prefix if it is not null (to know which session they
+// come from when several sessions run in the same process).
+public class LogTarget {
+    public static final LogTarget DEFAULT = new LogTarget(null, null);
+
+    private final PrintStream output;
+    private final String prefix;
+
+    public LogTarget(PrintStream output, String prefix) {
+        this.output = output;
+        this.prefix = prefix;
+    }
+
+    public void log(String log) {
+        String line = "[Selenium Java Robot] " + (prefix != null ? "[" + prefix + "] " : "") + log;
+        if (output != null) {
+            output.println(line);
+        }
+        System.out.println(line);
+    }
+}
@@ -17,76 +17,211 @@ package com.ariatemplates.seleniumjavarobot;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.commons.exec.OS;
-import org.openqa.selenium.remote.BrowserType;
 
 public class Main {
-    public final static List<String> BROWSERS_LIST = Arrays.asList(BrowserType.FIREFOX, BrowserType.SAFARI, BrowserType.CHROME, BrowserType.IE);
+    // Same values as in org.openqa.selenium.remote.BrowserType, which is not
+    // used so that --connect does not need to load Selenium:
+    public final static List<String> BROWSERS_LIST = Arrays.asList("firefox", "safari", "chrome", "internet explorer");
+    public final static int DEFAULT_DAEMON_PORT = 7778;
     private final static Pattern SET_SYSTEM_PROPERTY_REGEXP = Pattern.compile("^-D([^=]+)=(.*)$", Pattern.CASE_INSENSITIVE);
 
-    public static void main(String[] args) throws Exception {
-        SeleniumJavaRobot seleniumJavaRobot = new SeleniumJavaRobot();
+    static class Options {
         String browser;
-        seleniumJavaRobot.autoRestart = false;
-        if (OS.isFamilyMac()) {
-            browser = "safari";
-        } else {
-            browser = "firefox";
+        String url = "http://localhost:7777/__attester__/slave.html";
+        boolean autoRestart = false;
+        boolean standby = false;
+        boolean daemon = false;
+        boolean connect = false;
+        // Number of parallel sessions on private Xvfb displays (0 to use the
+        // display of the current process):
+        int sessions = 0;
+        // With sessions, tiles the browsers on the display of the current
+        // process instead of using Xvfb:
+        boolean tiled = false;
+        // Dispatches the events inside the page instead of using the mouse
+        // and keyboard (see SyntheticRobot):
+        boolean syntheticInput = false;
+        int port = DEFAULT_DAEMON_PORT;
+        // Options to be sent to the daemon when connect is true:
+        final List<String> sessionArgs = new ArrayList<String>();
+        // -D options (only applied by main, as the daemon parses the options
+        // of each session in the same JVM):
+        final Map<String, String> systemProperties = new LinkedHashMap<String, String>();
+
+        Options() {
+            if (OS.isFamilyMac()) {
+                browser = "safari";
+            } else {
+                browser = "firefox";
+            }
+        }
+
+        void configure(SeleniumJavaRobot seleniumJavaRobot) {
+            seleniumJavaRobot.url = url;
+            seleniumJavaRobot.autoRestart = autoRestart;
+            seleniumJavaRobot.standby = standby;
+        }
+
+        void setSystemProperties() {
+            for (Map.Entry<String, String> property : systemProperties.entrySet()) {
+                System.setProperty(property.getKey(), property.getValue());
+            }
         }
-        seleniumJavaRobot.url = "http://localhost:7777/__attester__/slave.html";
+    }
+
+    // Returns null if the program should not go further (because of an error
+    // or because of --help or --version).
+    static Options parseOptions(String[] args, PrintStream out, PrintStream err) {
+        Options options = new Options();
         String usageString = String
-                .format("Usage: selenium-java-robot [options]\nOptions:\n  --auto-restart\n  --url <url> [default: %s]\n  --browser <browser> [default: %s, accepted values: %s]\n  -DpropertyName=value",
-                        seleniumJavaRobot.url, browser, BROWSERS_LIST.toString());
+                .format("Usage: selenium-java-robot [options]\nOptions:\n  --auto-restart\n  --standby\n  --url <url> [default: %s]\n  --browser <browser> [default: %s, accepted values: %s]\n  --sessions <count>\n  --tiled\n  --synthetic-input\n  --daemon\n  --connect\n  --port <port> [default: %d]\n  -DpropertyName=value",
+                        options.url, options.browser, BROWSERS_LIST.toString(), DEFAULT_DAEMON_PORT);
         for (int i = 0, l = args.length; i < l; i++) {
             String curParam = args[i];
+            if ("--port".equalsIgnoreCase(curParam) && i + 1 < l) {
+                options.port = Integer.parseInt(args[i + 1]);
+                i++;
+                continue;
+            } else if ("--daemon".equalsIgnoreCase(curParam)) {
+                options.daemon = true;
+                continue;
+            } else if ("--connect".equalsIgnoreCase(curParam)) {
+                options.connect = true;
+                continue;
+            }
+            Matcher matcher = SET_SYSTEM_PROPERTY_REGEXP.matcher(curParam);
+            if (matcher.matches()) {
+                // not sent to the daemon (see main)
+                options.systemProperties.put(matcher.group(1), matcher.group(2));
+                continue;
+            }
+            options.sessionArgs.add(curParam);
             if ("--browser".equalsIgnoreCase(curParam) && i + 1 < l) {
-                browser = args[i + 1];
+                options.browser = args[i + 1];
+                options.sessionArgs.add(args[i + 1]);
                 i++;
             } else if ("--url".equalsIgnoreCase(curParam) && i + 1 < l) {
-                seleniumJavaRobot.url = args[i + 1];
+                options.url = args[i + 1];
+                options.sessionArgs.add(args[i + 1]);
+                i++;
+            } else if ("--sessions".equalsIgnoreCase(curParam) && i + 1 < l) {
+                options.sessions = Integer.parseInt(args[i + 1]);
+                options.sessionArgs.add(args[i + 1]);
                 i++;
+            } else if ("--tiled".equalsIgnoreCase(curParam)) {
+                options.tiled = true;
+            } else if ("--synthetic-input".equalsIgnoreCase(curParam)) {
+                options.syntheticInput = true;
             } else if ("--auto-restart".equalsIgnoreCase(curParam)) {
-                seleniumJavaRobot.autoRestart = true;
+                options.autoRestart = true;
+            } else if ("--standby".equalsIgnoreCase(curParam)) {
+                options.standby = true;
             } else if ("--version".equalsIgnoreCase(curParam)) {
-                System.out.println(Main.class.getPackage().getImplementationVersion());
-                return;
+                out.println(Main.class.getPackage().getImplementationVersion());
+                return null;
             } else if ("--help".equalsIgnoreCase(curParam)) {
-                System.out.println(usageString);
-                return;
+                out.println(usageString);
+                return null;
             } else {
-                Matcher matcher = SET_SYSTEM_PROPERTY_REGEXP.matcher(curParam);
-                if (matcher.matches()) {
-                    System.setProperty(matcher.group(1), matcher.group(2));
-                } else {
-                    System.err.println("Unknown command line option: " + curParam);
-                    System.err.println(usageString);
-                    return;
-                }
+                err.println("Unknown command line option: " + curParam);
+                err.println(usageString);
+                return null;
             }
         }
-        seleniumJavaRobot.robotizedBrowserFactory = LocalRobotizedBrowserFactory.createRobotizedWebDriverFactory(browser);
+        return options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = parseOptions(args, System.out, System.err);
+        if (options == null) {
+            return;
+        }
+        options.setSystemProperties();
+        if (options.daemon) {
+            Daemon daemon = new Daemon(options.port);
+            closeOnProcessEnd(daemon);
+            daemon.run();
+            return;
+        }
+        if (options.connect) {
+            if (!options.systemProperties.isEmpty()) {
+                // system properties are shared by the whole daemon
+                System.err.println("-D options cannot be used with --connect, they must be given to the daemon.");
+                System.exit(1);
+                return;
+            }
+            System.exit(DaemonClient.run(options.port, options.sessionArgs, System.in, System.out));
+            return;
+        }
+        if (options.sessions > 0) {
+            SessionManager sessionManager = new SessionManager();
+            sessionManager.browser = options.browser;
+            sessionManager.url = options.url;
+            sessionManager.autoRestart = options.autoRestart;
+            sessionManager.standby = options.standby;
+            sessionManager.sessionsCount = options.sessions;
+            sessionManager.tiled = options.tiled;
+            sessionManager.syntheticInput = options.syntheticInput;
+            closeOnProcessEnd(sessionManager);
+            sessionManager.start();
+            closeOnStreamEnd(sessionManager, System.in);
+            sessionManager.join();
+            return;
+        }
+        SeleniumJavaRobot seleniumJavaRobot = new SeleniumJavaRobot();
+        options.configure(seleniumJavaRobot);
+        LocalRobotizedBrowserFactory robotizedBrowserFactory = LocalRobotizedBrowserFactory.createRobotizedWebDriverFactory(options.browser);
+        robotizedBrowserFactory.setSyntheticInput(options.syntheticInput);
+        seleniumJavaRobot.robotizedBrowserFactory = robotizedBrowserFactory;
         seleniumJavaRobot.start();
         closeOnStreamEnd(seleniumJavaRobot, System.in);
-        closeOnProcessEnd(seleniumJavaRobot);
+        closeOnProcessEnd(seleniumJavaRobot, robotizedBrowserFactory);
+        seleniumJavaRobot.join();
+        robotizedBrowserFactory.close();
     }
 
-    private static void closeOnProcessEnd(final SeleniumJavaRobot seleniumJavaRobot) {
+    private static void closeOnProcessEnd(final Daemon daemon) {
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                daemon.close();
+            }
+        }));
+    }
+
+    private static void closeOnProcessEnd(final SessionManager sessionManager) {
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                try {
+                    sessionManager.stop();
+                } catch (InterruptedException e) {
+                }
+            }
+        }));
+    }
+
+    private static void closeOnProcessEnd(final SeleniumJavaRobot seleniumJavaRobot, final LocalRobotizedBrowserFactory robotizedBrowserFactory) {
         Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
             public void run() {
                 try {
                     seleniumJavaRobot.stop();
                 } catch (InterruptedException e) {
                 }
+                robotizedBrowserFactory.close();
             }
         }));
     }
 
-    private static void closeOnStreamEnd(final SeleniumJavaRobot seleniumJavaRobot, final InputStream inputStream) {
+    static void closeOnStreamEnd(final SeleniumJavaRobot seleniumJavaRobot, final InputStream inputStream) {
         Thread thread = new Thread(new Runnable() {
             public void run() {
                 try {
@@ -104,4 +239,23 @@ public class Main {
         thread.setDaemon(true);
         thread.start();
     }
+
+    private static void closeOnStreamEnd(final SessionManager sessionManager, final InputStream inputStream) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (inputStream.read() > -1) {
+                        // do nothing
+                    }
+                } catch (IOException e) {
+                }
+                try {
+                    sessionManager.stop();
+                } catch (InterruptedException e) {
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2014 Amadeus s.a.s.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ariatemplates.seleniumjavarobot;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Counters of one SeleniumJavaRobot (each session has its own), logged when it
+// ends.
+public class Metrics {
+    public final AtomicLong browserStarts = new AtomicLong();
+    public final AtomicLong calibrations = new AtomicLong();
+    public final AtomicLong calibrationTime = new AtomicLong();
+    public final AtomicLong calls = new AtomicLong();
+    public final AtomicLong failedCalls = new AtomicLong();
+    // Calls which reached their deadline (given by the page), in the page or
+    // in Java:
+    public final AtomicLong expiredCalls = new AtomicLong();
+    public final AtomicLong callTime = new AtomicLong();
+    // Times the executor script had to be injected again (after the page
+    // was unloaded), and the time it took:
+    public final AtomicLong reattachments = new AtomicLong();
+    public final AtomicLong reattachTime = new AtomicLong();
+    // Changes of the offset detected while the page is used:
+    public final AtomicLong offsetCorrections = new AtomicLong();
+
+    public void addCalibration(long time) {
+        calibrations.incrementAndGet();
+        calibrationTime.addAndGet(time);
+    }
+
+    public void addCall(long time, boolean success) {
+        calls.incrementAndGet();
+        if (!success) {
+            failedCalls.incrementAndGet();
+        }
+        callTime.addAndGet(time);
+    }
+
+    public void addReattachment(long time) {
+        reattachments.incrementAndGet();
+        reattachTime.addAndGet(time);
+    }
+
+    public void addExpiredCalls(long count) {
+        expiredCalls.addAndGet(count);
+    }
+
+    private static long average(long total, long count) {
+        return count == 0 ? 0 : total / count;
+    }
+
+    @Override
+    public String toString() {
+        long calibrations = this.calibrations.get();
+        long calls = this.calls.get();
+        long reattachments = this.reattachments.get();
+        return String.format("browser starts: %d, calibrations: %d (average %d ms), calls: %d (failed: %d, expired: %d, average %d ms), "
+                + "reattachments: %d (average %d ms), offset corrections: %d", browserStarts.get(), calibrations,
+                average(calibrationTime.get(), calibrations), calls, failedCalls.get(), expiredCalls.get(), average(callTime.get(), calls),
+                reattachments, average(reattachTime.get(), reattachments), offsetCorrections.get());
+    }
+}
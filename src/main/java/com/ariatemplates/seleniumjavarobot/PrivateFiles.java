@@ -0,0 +1,86 @@
+/*
+ * Copyright 2014 Amadeus s.a.s.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ariatemplates.seleniumjavarobot;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.SecureRandom;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.exec.OS;
+import org.apache.commons.io.FileUtils;
+
+// Files of the home directory of the user which must not be readable by other
+// users (copies of Firefox profiles, tokens of the daemon and of the robot
+// agent).
+public class PrivateFiles {
+    private static final File ROOT_DIRECTORY = new File(System.getProperty("user.home"), ".selenium-java-robot");
+
+    // Returns the given sub-directory of ~/.selenium-java-robot, after
+    // creating it if needed and checking that it is only accessible to the
+    // current user (and that it is not a link to another directory).
+    static File getDirectory(String name) throws IOException {
+        File directory = new File(ROOT_DIRECTORY, name);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        if (!directory.getCanonicalFile().equals(directory.getAbsoluteFile())) {
+            throw new IOException(directory + " is a link.");
+        }
+        if (!restrictToOwner(ROOT_DIRECTORY) || !restrictToOwner(directory) || !directory.canWrite()) {
+            throw new IOException("Could not restrict the access to " + directory);
+        }
+        return directory;
+    }
+
+    // Creates an empty file only readable and writable by the current user
+    // (0600), replacing any previous file with the same name.
+    public static void createFile(File file) throws IOException {
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not delete " + file);
+        }
+        if (!file.createNewFile() || !restrictToOwner(file)) {
+            throw new IOException("Could not create " + file);
+        }
+    }
+
+    // Writes a new random token in the given file (see createFile), and
+    // returns it.
+    public static String createToken(File file) throws IOException {
+        byte[] tokenBytes = new byte[32];
+        new SecureRandom().nextBytes(tokenBytes);
+        String token = Hex.encodeHexString(tokenBytes);
+        createFile(file);
+        FileUtils.writeStringToFile(file, token, "UTF-8");
+        return token;
+    }
+
+    // Reads a token written by createToken (or by the user, so surrounding
+    // white spaces are ignored).
+    public static String readToken(File file) throws IOException {
+        return FileUtils.readFileToString(file, "UTF-8").trim();
+    }
+
+    // Gives the permissions to the owner only (0700 for directories, 0600 for
+    // files). On Windows, the home directory is already private.
+    public static boolean restrictToOwner(File file) {
+        if (OS.isFamilyWindows()) {
+            return true;
+        }
+        boolean directory = file.isDirectory();
+        return file.setReadable(false, false) && file.setReadable(true, true) && file.setWritable(false, false) && file.setWritable(true, true)
+                && file.setExecutable(false, false) && (!directory || file.setExecutable(true, true));
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2014 Amadeus s.a.s.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ariatemplates.seleniumjavarobot;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.exec.OS;
+import org.apache.commons.io.IOUtils;
+
+// Forcefully kills processes with all their descendants, using the tools of the
+// operating system (ps and kill, or wmic and taskkill on Windows). This allows
+// to kill a hung browser without killing the other browsers or the driver
+// shared with them. The processes are selected either by their ids, or by an
+// argument which is only used by the browser to kill.
+public class ProcessTreeKiller {
+
+    // Selects the processes to kill.
+    public static abstract class Selector {
+        abstract boolean matches(String pid, String commandLine);
+    }
+
+    // Selects the processes whose command line contains the given executable
+    // name (if not null) and exactly the given argument (quotes are ignored).
+    public static Selector byArgument(final String executableName, final String argument) {
+        return new Selector() {
+            @Override
+            boolean matches(String pid, String commandLine) {
+                commandLine = commandLine.replace("\"", "");
+                if (executableName != null && !commandLine.toLowerCase().contains(executableName.toLowerCase())) {
+                    return false;
+                }
+                for (int index = commandLine.indexOf(argument); index >= 0; index = commandLine.indexOf(argument, index + 1)) {
+                    int end = index + argument.length();
+                    if (index > 0 && commandLine.charAt(index - 1) == ' ' && (end == commandLine.length() || commandLine.charAt(end) == ' ')) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            public String toString() {
+                return executableName != null ? executableName + " " + argument : argument;
+            }
+        };
+    }
+
+    // Selects the processes with the given ids.
+    public static Selector byPids(Collection<String> pids) {
+        final Set<String> pidsSet = new LinkedHashSet<String>(pids);
+        return new Selector() {
+            @Override
+            boolean matches(String pid, String commandLine) {
+                return pidsSet.contains(pid);
+            }
+
+            @Override
+            public String toString() {
+                return "processes " + pidsSet;
+            }
+        };
+    }
+
+    // Returns the ids of the processes whose command line contains the given
+    // executable name. Comparing the result before and after starting a
+    // browser gives the processes of this browser.
+    public static Set<String> findByExecutable(String executableName) {
+        Set<String> pids = new LinkedHashSet<String>();
+        for (ProcessInfo process : listProcesses()) {
+            if (process.commandLine.toLowerCase().contains(executableName.toLowerCase())) {
+                pids.add(process.pid);
+            }
+        }
+        return pids;
+    }
+
+    // Kills the selected processes (except the current one) with their
+    // descendants, and returns the number of processes which matched.
+    public static int kill(Selector selector) {
+        String ownPid = getOwnPid();
+        List<ProcessInfo> processes = listProcesses();
+        Map<String, List<String>> children = new HashMap<String, List<String>>();
+        List<String> matchingPids = new ArrayList<String>();
+        for (ProcessInfo process : processes) {
+            List<String> siblings = children.get(process.parentPid);
+            if (siblings == null) {
+                siblings = new ArrayList<String>();
+                children.put(process.parentPid, siblings);
+            }
+            siblings.add(process.pid);
+            if (!process.pid.equals(ownPid) && selector.matches(process.pid, process.commandLine)) {
+                matchingPids.add(process.pid);
+            }
+        }
+        if (matchingPids.isEmpty()) {
+            return 0;
+        }
+        try {
+            if (OS.isFamilyWindows()) {
+                for (String pid : matchingPids) {
+                    // taskkill /T kills the whole tree
+                    run("taskkill", "/F", "/T", "/PID", pid);
+                }
+                SeleniumJavaRobot.log("Killed process trees " + matchingPids);
+            } else {
+                // the whole tree is killed at once, so that no process can
+                // start a new child in the meantime
+                Set<String> pids = new LinkedHashSet<String>(matchingPids);
+                List<String> toVisit = new ArrayList<String>(matchingPids);
+                while (!toVisit.isEmpty()) {
+                    List<String> pidChildren = children.get(toVisit.remove(toVisit.size() - 1));
+                    if (pidChildren != null) {
+                        for (String child : pidChildren) {
+                            if (pids.add(child)) {
+                                toVisit.add(child);
+                            }
+                        }
+                    }
+                }
+                List<String> command = new ArrayList<String>();
+                command.add("kill");
+                command.add("-9");
+                command.addAll(pids);
+                run(command.toArray(new String[command.size()]));
+                SeleniumJavaRobot.log("Killed processes " + pids);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return matchingPids.size();
+    }
+
+    private static class ProcessInfo {
+        final String pid;
+        final String parentPid;
+        final String commandLine;
+
+        ProcessInfo(String pid, String parentPid, String commandLine) {
+            this.pid = pid;
+            this.parentPid = parentPid;
+            this.commandLine = commandLine;
+        }
+    }
+
+    private static String getOwnPid() {
+        // the name of the runtime is pid@hostname
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        return name.substring(0, Math.max(0, name.indexOf('@')));
+    }
+
+    private static List<ProcessInfo> listProcesses() {
+        try {
+            return OS.isFamilyWindows() ? listWindowsProcesses() : listUnixProcesses();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new ArrayList<ProcessInfo>();
+        }
+    }
+
+    private static List<ProcessInfo> listUnixProcesses() throws IOException, InterruptedException {
+        List<ProcessInfo> processes = new ArrayList<ProcessInfo>();
+        for (String line : run("ps", "-A", "-o", "pid=", "-o", "ppid=", "-o", "args=").split("\n")) {
+            String[] fields = line.trim().split("\\s+", 3);
+            if (fields.length == 3) {
+                processes.add(new ProcessInfo(fields[0], fields[1], fields[2]));
+            }
+        }
+        return processes;
+    }
+
+    private static List<ProcessInfo> listWindowsProcesses() throws IOException, InterruptedException {
+        List<ProcessInfo> processes = new ArrayList<ProcessInfo>();
+        // columns are sorted by name: Node,CommandLine,ParentProcessId,
+        // ProcessId (the command line can contain commas, but not the ids)
+        for (String line : run("wmic", "process", "get", "CommandLine,ParentProcessId,ProcessId", "/format:csv").split("\n")) {
+            line = line.replace("\u0000", "").trim();
+            int lastComma = line.lastIndexOf(',');
+            int parentComma = lastComma > 0 ? line.lastIndexOf(',', lastComma - 1) : -1;
+            int firstComma = line.indexOf(',');
+            if (parentComma <= firstComma || line.contains("wmic")) {
+                continue;
+            }
+            processes.add(new ProcessInfo(line.substring(lastComma + 1), line.substring(parentComma + 1, lastComma), line.substring(
+                    firstComma + 1, parentComma)));
+        }
+        return processes;
+    }
+
+    private static String run(String... command) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        try {
+            process.getOutputStream().close();
+            String output = IOUtils.toString(process.getInputStream());
+            process.waitFor();
+            return output;
+        } finally {
+            process.destroy();
+        }
+    }
+}
@@ -15,20 +15,40 @@
 
 package com.ariatemplates.seleniumjavarobot;
 
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import org.openqa.selenium.Dimension;
+import org.openqa.selenium.OutputType;
 import org.openqa.selenium.Point;
+import org.openqa.selenium.internal.Killable;
 import org.openqa.selenium.remote.RemoteWebDriver;
 
 public class RemoteWebDriverBrowser implements IBrowser {
     private final RemoteWebDriver webdriver;
+    // Selects the browser process, so that it can be killed with its children
+    // (null if the process cannot be identified):
+    private final ProcessTreeKiller.Selector processSelector;
 
     public RemoteWebDriverBrowser(RemoteWebDriver webdriver) {
+        this(webdriver, null);
+    }
+
+    public RemoteWebDriverBrowser(RemoteWebDriver webdriver, ProcessTreeKiller.Selector processSelector) {
         if (webdriver == null) {
             throw new NullPointerException();
         }
         this.webdriver = webdriver;
+        this.processSelector = processSelector;
+    }
+
+    // Each Chrome session started by chromedriver has its own user data
+    // directory, which is an argument of its main process (null is returned
+    // if chromedriver does not report it).
+    public static ProcessTreeKiller.Selector getChromeProcess(RemoteWebDriver webdriver) {
+        Object chromeInfo = webdriver.getCapabilities().getCapability("chrome");
+        Object userDataDir = chromeInfo instanceof Map ? ((Map<?, ?>) chromeInfo).get("userDataDir") : null;
+        return userDataDir != null ? ProcessTreeKiller.byArgument(null, "--user-data-dir=" + userDataDir) : null;
     }
 
     public Object executeScript(String script, Object... args) {
@@ -39,10 +59,23 @@ public class RemoteWebDriverBrowser implements IBrowser {
         return webdriver.executeAsyncScript(script, args);
     }
 
+    public <X> X getScreenshotAs(OutputType<X> target) {
+        return webdriver.getScreenshotAs(target);
+    }
+
     public void quit() {
         webdriver.quit();
     }
 
+    public void kill() {
+        if (processSelector != null && ProcessTreeKiller.kill(processSelector) == 0) {
+            SeleniumJavaRobot.log("No browser process found with " + processSelector);
+        }
+        if (webdriver instanceof Killable) {
+            ((Killable) webdriver).kill();
+        }
+    }
+
     public void get(String url) {
         webdriver.get(url);
     }
@@ -55,6 +88,18 @@ public class RemoteWebDriverBrowser implements IBrowser {
         return webdriver.manage().window().getSize();
     }
 
+    public void setWindowPosition(Point position) {
+        webdriver.manage().window().setPosition(position);
+    }
+
+    public void setWindowSize(Dimension size) {
+        webdriver.manage().window().setSize(size);
+    }
+
+    public void maximize() {
+        webdriver.manage().window().maximize();
+    }
+
     public void setScriptTimeout(long time, TimeUnit unit) {
         webdriver.manage().timeouts().setScriptTimeout(time, unit);
     }
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2014 Amadeus s.a.s.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ariatemplates.seleniumjavarobot;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Shares the mouse and keyboard of one display between several browsers tiled
+// on the screen (each one using its own ArbitratedRobot). Calls of the pages
+// are executed one at a time (see ArbitratedRobot.beginCall), and the input
+// belongs to one ArbitratedRobot at a time: it keeps it as long as it holds a
+// key or a mouse button pressed, so that a drag and drop or a key combination
+// is not mixed with the events of another browser. When the input goes to
+// another ArbitratedRobot, its window is activated first, so that it receives
+// the keyboard events.
+public class RobotArbiter {
+    private static final long MAX_HOLD_TIME = Long.getLong("seleniumjavarobot.arbiter.maxhold", 10000);
+
+    final IRobot robot;
+    // Held during each call (or event outside of a call). It is reentrant,
+    // so that the events of a call can also take it.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition releasedCondition = lock.newCondition();
+    // The following fields are guarded by lock:
+    private ArbitratedRobot owner;
+    private long ownerLastEventTime;
+
+    public RobotArbiter(IRobot robot) {
+        this.robot = robot;
+    }
+
+    void lock() {
+        lock.lock();
+    }
+
+    void unlock() {
+        lock.unlock();
+    }
+
+    // Gives the input to the given robot, waiting for the current owner to
+    // release its keys and buttons if needed (the lock is released while
+    // waiting). Must be called while holding the lock, which must be kept
+    // until the event is executed. As the lock is kept during a whole call,
+    // the window is activated at most once per call.
+    void acquire(ArbitratedRobot requester) {
+        while (owner != null && owner != requester && owner.isHoldingInput()) {
+            long remainingTime = ownerLastEventTime + MAX_HOLD_TIME - System.currentTimeMillis();
+            if (remainingTime <= 0) {
+                SeleniumJavaRobot.log("Releasing the keys and buttons held for too long by another browser.");
+                owner.releaseAll();
+                break;
+            }
+            try {
+                releasedCondition.await(remainingTime, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+        if (owner != requester) {
+            requester.activate();
+            owner = requester;
+        }
+        ownerLastEventTime = System.currentTimeMillis();
+    }
+
+    // Called (with the lock) when the owner no longer holds any key or
+    // button.
+    void released() {
+        releasedCondition.signalAll();
+    }
+}
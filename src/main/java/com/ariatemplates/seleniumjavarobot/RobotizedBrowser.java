@@ -14,29 +14,129 @@
  */
 package com.ariatemplates.seleniumjavarobot;
 
+import java.awt.Rectangle;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.openqa.selenium.Dimension;
+import org.openqa.selenium.Point;
+
 public class RobotizedBrowser {
-    private boolean stopped;
+    // States can only be reached in this order (some of them can be skipped):
+    public static enum State {
+        STARTING, CALIBRATING, RUNNING, STOPPING, STOPPED
+    }
+
+    private final AtomicReference<State> state = new AtomicReference<State>(State.STARTING);
+    // One latch per state, released when that state (or a later one) is
+    // reached:
+    private final CountDownLatch[] stateLatches = new CountDownLatch[State.values().length];
+    private final List<IRobotizedBrowserListener> listeners = new CopyOnWriteArrayList<IRobotizedBrowserListener>();
     public final IRobot robot;
+    // Robot for the same display as robot, used by the flight recorder (null
+    // to use robot):
+    public final IRobot recorderRobot;
     public final IBrowser browser;
+    // Screen area of the browser window (null if the window is maximized):
+    public final Rectangle windowBounds;
+    private final WatchdogBrowser watchdogBrowser;
 
     public RobotizedBrowser(IRobot robot, IBrowser browser) {
+        this(robot, browser, null);
+    }
+
+    public RobotizedBrowser(IRobot robot, IBrowser browser, Rectangle windowBounds) {
+        this(robot, browser, windowBounds, null);
+    }
+
+    public RobotizedBrowser(IRobot robot, IBrowser browser, Rectangle windowBounds, IRobot recorderRobot) {
         if (robot == null || browser == null) {
             throw new NullPointerException();
         }
         this.robot = robot;
-        this.browser = browser;
+        this.recorderRobot = recorderRobot;
+        this.windowBounds = windowBounds;
+        this.watchdogBrowser = new WatchdogBrowser(browser);
+        this.browser = watchdogBrowser;
+        for (int i = 0; i < stateLatches.length; i++) {
+            stateLatches[i] = new CountDownLatch(1);
+        }
+        stateLatches[State.STARTING.ordinal()].countDown();
+    }
+
+    // Returns the time at which the browser was killed because it was hung, or
+    // 0 if it was not killed.
+    public long getKillTime() {
+        return watchdogBrowser.getKillTime();
+    }
+
+    // Moves the browser window to its expected place on the screen.
+    public void placeWindow() {
+        if (windowBounds == null) {
+            browser.maximize();
+        } else {
+            browser.setWindowPosition(new Point(windowBounds.x, windowBounds.y));
+            browser.setWindowSize(new Dimension(windowBounds.width, windowBounds.height));
+        }
+    }
+
+    public void addListener(IRobotizedBrowserListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(IRobotizedBrowserListener listener) {
+        listeners.remove(listener);
+    }
+
+    public State getState() {
+        return state.get();
+    }
+
+    // Changes the state, if newState is after the current state. Returns false
+    // if the state was not changed.
+    public boolean setState(State newState) {
+        State previousState;
+        do {
+            previousState = state.get();
+            if (previousState.compareTo(newState) >= 0) {
+                return false;
+            }
+        } while (!state.compareAndSet(previousState, newState));
+        for (int i = previousState.ordinal() + 1; i <= newState.ordinal(); i++) {
+            stateLatches[i].countDown();
+        }
+        for (IRobotizedBrowserListener listener : listeners) {
+            try {
+                listener.stateChanged(this, previousState, newState);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        return true;
+    }
+
+    // Waits until the given state (or a later one) is reached. Returns false if
+    // the timeout expired before.
+    public boolean waitForState(State expectedState, long timeout, TimeUnit unit) throws InterruptedException {
+        return stateLatches[expectedState.ordinal()].await(timeout, unit);
     }
 
-    public synchronized boolean isStopped() {
-        return stopped;
+    public boolean isStopped() {
+        return state.get().compareTo(State.STOPPING) >= 0;
     }
 
-    public synchronized void stop() {
-        if (!stopped) {
-            stopped = true;
+    public void stop() {
+        // only the thread which changes the state to STOPPING calls quit, and
+        // it does it without holding any lock:
+        if (setState(State.STOPPING)) {
             try {
                 browser.quit();
             } catch (RuntimeException e) {
+            } finally {
+                setState(State.STOPPED);
             }
         }
     }
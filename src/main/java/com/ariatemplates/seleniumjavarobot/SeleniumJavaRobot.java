@@ -14,12 +14,18 @@
  */
 package com.ariatemplates.seleniumjavarobot;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.openqa.selenium.Point;
 
+import com.ariatemplates.seleniumjavarobot.RobotizedBrowser.State;
 import com.ariatemplates.seleniumjavarobot.calibrator.Calibrator;
 import com.ariatemplates.seleniumjavarobot.executor.Executor;
 
@@ -27,30 +33,51 @@ public class SeleniumJavaRobot {
     // Public options (not supposed to be changed after calling start):
     public String url;
     public boolean autoRestart;
+    // Only used with autoRestart, keeps a spare browser ready to replace the
+    // active one:
+    public boolean standby;
     public IRobotizedBrowserFactory robotizedBrowserFactory;
+    public LogTarget logTarget = LogTarget.DEFAULT;
+    public final Metrics metrics = new Metrics();
 
     // Private fields:
     private final Thread mainThread = createMainThread();
-    private final ExecutorService quitExecutor = Executors.newSingleThreadExecutor();
+    private final ExecutorService quitExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            return new Thread(withLogTarget(logTarget, r));
+        }
+    });
+
+    private final AtomicReference<RobotizedBrowser> robotizedBrowser = new AtomicReference<RobotizedBrowser>();
+    private final AtomicBoolean stopped = new AtomicBoolean(false);
+    private final List<IRobotizedBrowserListener> listeners = new CopyOnWriteArrayList<IRobotizedBrowserListener>();
 
-    private final Object lock = new Object();
-    // The previous lock object is a lock for the following 2 fields:
-    private RobotizedBrowser robotizedBrowser;
-    private boolean stopped = false;
+    // The listener is added to each browser created by this object.
+    public void addListener(IRobotizedBrowserListener listener) {
+        listeners.add(listener);
+    }
 
     public void start() {
         mainThread.start();
     }
 
+    public boolean isStopped() {
+        return stopped.get();
+    }
+
+    // Waits until the robot is stopped.
+    public void join() throws InterruptedException {
+        mainThread.join();
+    }
+
     public void stop() throws InterruptedException {
-        synchronized (lock) {
-            if (!stopped && mainThread.isAlive()) {
-                log("Closing ...");
-            }
-            stopped = true;
-            if (robotizedBrowser != null) {
-                robotizedBrowser.stop();
-            }
+        if (stopped.compareAndSet(false, true) && mainThread.isAlive()) {
+            // can be called from any thread
+            logTarget.log("Closing ...");
+        }
+        RobotizedBrowser robotizedBrowser = this.robotizedBrowser.get();
+        if (robotizedBrowser != null) {
+            robotizedBrowser.stop();
         }
         mainThread.join();
     }
@@ -58,32 +85,71 @@ public class SeleniumJavaRobot {
     private Thread createMainThread() {
         Thread result = new Thread(new Runnable() {
             public void run() {
+                currentLogTarget.set(logTarget);
+                // time at which the previous browser was killed by the
+                // watchdog (used to report the time needed to recover):
+                long killTime = 0;
+                final StandbyBrowser standbyBrowser = autoRestart && standby ? new StandbyBrowser(robotizedBrowserFactory, Long.getLong(
+                        "seleniumjavarobot.standby.maxidle", 30 * 60 * 1000)) : null;
+                // the standby browser is only started once the active one
+                // is calibrated, so that it does not disturb calibration
+                final IRobotizedBrowserListener prepareStandby = new IRobotizedBrowserListener() {
+                    public void stateChanged(RobotizedBrowser robotizedBrowser, State previousState, State newState) {
+                        if (newState == State.RUNNING) {
+                            standbyBrowser.prepare();
+                        }
+                    }
+                };
                 do {
                     RobotizedBrowser robotizedBrowser = null;
                     try {
-                        synchronized (lock) {
-                            if (stopped) {
-                                break;
-                            }
+                        if (stopped.get()) {
+                            break;
+                        }
+                        if (standbyBrowser != null) {
+                            robotizedBrowser = standbyBrowser.take();
+                        }
+                        if (robotizedBrowser == null) {
                             robotizedBrowser = robotizedBrowserFactory.createRobotizedBrowser();
-                            SeleniumJavaRobot.this.robotizedBrowser = robotizedBrowser;
                         }
-                        startDriver(robotizedBrowser, url);
+                        metrics.browserStarts.incrementAndGet();
+                        if (standbyBrowser != null) {
+                            robotizedBrowser.addListener(prepareStandby);
+                        }
+                        for (IRobotizedBrowserListener listener : listeners) {
+                            robotizedBrowser.addListener(listener);
+                        }
+                        SeleniumJavaRobot.this.robotizedBrowser.set(robotizedBrowser);
+                        if (stopped.get()) {
+                            // stop was called while the browser was being
+                            // created (it is stopped in the finally block)
+                            break;
+                        }
+                        if (killTime != 0) {
+                            log(String.format("Recovered from the hung browser in %d ms.", System.currentTimeMillis() - killTime));
+                            killTime = 0;
+                        }
+                        startDriver(robotizedBrowser, url, metrics);
                     } catch (RuntimeException e) {
                         e.printStackTrace();
                     } catch (InterruptedException e) {
                         break;
                     } finally {
                         if (robotizedBrowser != null) {
+                            killTime = robotizedBrowser.getKillTime();
                             stopBrowserLater(robotizedBrowser);
                         }
                     }
                 } while (autoRestart);
+                if (standbyBrowser != null) {
+                    standbyBrowser.close();
+                }
                 quitExecutor.shutdown();
                 try {
                     quitExecutor.awaitTermination(1, TimeUnit.MINUTES);
                 } catch (InterruptedException e) {
                 }
+                SeleniumJavaRobot.log("Metrics: " + metrics);
                 SeleniumJavaRobot.log("End");
             }
         });
@@ -106,14 +172,57 @@ public class SeleniumJavaRobot {
     }
 
     public static void startDriver(RobotizedBrowser robotizedBrowser, String url) throws InterruptedException {
-        Point offset = Calibrator.calibrate(robotizedBrowser);
-        log("Computed offset: " + offset);
+        startDriver(robotizedBrowser, url, new Metrics());
+    }
+
+    public static void startDriver(RobotizedBrowser robotizedBrowser, String url, Metrics metrics) throws InterruptedException {
+        Point offset;
+        if (robotizedBrowser.robot instanceof SyntheticRobot) {
+            // synthetic events are dispatched in the page, with its own
+            // coordinates
+            offset = new Point(0, 0);
+            log("Calibration skipped (synthetic input).");
+        } else {
+            robotizedBrowser.setState(State.CALIBRATING);
+            long calibrationStart = System.currentTimeMillis();
+            offset = Calibrator.calibrate(robotizedBrowser);
+            metrics.addCalibration(System.currentTimeMillis() - calibrationStart);
+            log("Computed offset: " + offset);
+        }
         robotizedBrowser.browser.get(url);
-        Executor executor = new Executor(robotizedBrowser, offset);
+        Executor executor = new Executor(robotizedBrowser, offset, metrics);
+        robotizedBrowser.setState(State.RUNNING);
         executor.run();
     }
 
+    // Destination of the logs of the current thread. It is not inherited:
+    // each thread which works for a session is given the log target of the
+    // session explicitly (see withLogTarget), so that threads shared between
+    // sessions (such as the timer of WatchdogBrowser) never keep the log
+    // target of the session during which they were created.
+    private static final ThreadLocal<LogTarget> currentLogTarget = new ThreadLocal<LogTarget>();
+
+    public static LogTarget getLogTarget() {
+        LogTarget logTarget = currentLogTarget.get();
+        return logTarget != null ? logTarget : LogTarget.DEFAULT;
+    }
+
+    // Returns a runnable which runs the given one with the given log target.
+    public static Runnable withLogTarget(final LogTarget logTarget, final Runnable runnable) {
+        return new Runnable() {
+            public void run() {
+                LogTarget previousLogTarget = currentLogTarget.get();
+                currentLogTarget.set(logTarget);
+                try {
+                    runnable.run();
+                } finally {
+                    currentLogTarget.set(previousLogTarget);
+                }
+            }
+        };
+    }
+
     public static void log(String log) {
-        System.out.println("[Selenium Java Robot] " + log);
+        getLogTarget().log(log);
     }
 }
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2014 Amadeus s.a.s.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ariatemplates.seleniumjavarobot;
+
+import java.awt.GraphicsEnvironment;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Runs several sessions in parallel in the same process, each one with its own
+// browser, calibration and metrics. Each session has its own Xvfb display and
+// robot, or, in tiled mode, the browsers are tiled on the display of the
+// current process and share its robot (see RobotArbiter). With synthetic
+// input, the sessions do not share anything, so their browsers are all
+// started on the display of the current process.
+public class SessionManager {
+    // Public options (not supposed to be changed after calling start):
+    public String browser;
+    public String url;
+    public boolean autoRestart;
+    public boolean standby;
+    public int sessionsCount;
+    public boolean tiled;
+    public boolean syntheticInput;
+
+    private final List<Session> sessions = new ArrayList<Session>();
+
+    private static class Session {
+        volatile XvfbDisplay display;
+        volatile LocalRobotizedBrowserFactory robotizedBrowserFactory;
+        volatile SeleniumJavaRobot seleniumJavaRobot;
+
+        void close() {
+            if (robotizedBrowserFactory != null) {
+                robotizedBrowserFactory.close();
+            }
+            if (display != null) {
+                display.close();
+            }
+        }
+    }
+
+    public void start() throws IOException, InterruptedException {
+        RobotArbiter robotArbiter = tiled && !syntheticInput ? new RobotArbiter(LocalRobotizedBrowserFactory.createDefaultRobot()) : null;
+        for (int i = 1; i <= sessionsCount; i++) {
+            Session session = new Session();
+            synchronized (sessions) {
+                sessions.add(session);
+            }
+            String logPrefix = "session " + i;
+            if (syntheticInput) {
+                session.robotizedBrowserFactory = LocalRobotizedBrowserFactory.createRobotizedWebDriverFactory(browser);
+                session.robotizedBrowserFactory.setSyntheticInput(true);
+                if (tiled) {
+                    session.robotizedBrowserFactory.setWindowBounds(getTile(i - 1));
+                }
+            } else if (tiled) {
+                session.robotizedBrowserFactory = LocalRobotizedBrowserFactory.createRobotizedWebDriverFactory(browser);
+                session.robotizedBrowserFactory.setWindowBounds(getTile(i - 1));
+                session.robotizedBrowserFactory.setRobotArbiter(robotArbiter);
+            } else {
+                session.display = XvfbDisplay.start();
+                session.robotizedBrowserFactory = LocalRobotizedBrowserFactory.createRobotizedWebDriverFactory(browser, session.display.getName());
+                logPrefix += " on " + session.display.getName();
+            }
+            SeleniumJavaRobot seleniumJavaRobot = new SeleniumJavaRobot();
+            seleniumJavaRobot.url = url;
+            seleniumJavaRobot.autoRestart = autoRestart;
+            seleniumJavaRobot.standby = standby;
+            seleniumJavaRobot.robotizedBrowserFactory = session.robotizedBrowserFactory;
+            seleniumJavaRobot.logTarget = new LogTarget(null, logPrefix);
+            session.seleniumJavaRobot = seleniumJavaRobot;
+            seleniumJavaRobot.start();
+        }
+    }
+
+    // Splits the screen in a grid with one cell per session.
+    private Rectangle getTile(int index) {
+        Rectangle screen = GraphicsEnvironment.getLocalGraphicsEnvironment().getMaximumWindowBounds();
+        int columns = (int) Math.ceil(Math.sqrt(sessionsCount));
+        int rows = (sessionsCount + columns - 1) / columns;
+        int width = screen.width / columns;
+        int height = screen.height / rows;
+        return new Rectangle(screen.x + (index % columns) * width, screen.y + (index / columns) * height, width, height);
+    }
+
+    private List<Session> getSessions() {
+        synchronized (sessions) {
+            return new ArrayList<Session>(sessions);
+        }
+    }
+
+    // Waits until all sessions are stopped, and releases their resources.
+    public void join() throws InterruptedException {
+        for (Session session : getSessions()) {
+            if (session.seleniumJavaRobot != null) {
+                session.seleniumJavaRobot.join();
+            }
+            session.close();
+        }
+    }
+
+    public void stop() throws InterruptedException {
+        for (Session session : getSessions()) {
+            if (session.seleniumJavaRobot != null) {
+                session.seleniumJavaRobot.stop();
+            }
+            session.close();
+        }
+    }
+}
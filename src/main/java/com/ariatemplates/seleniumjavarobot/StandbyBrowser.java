@@ -0,0 +1,161 @@
+/*
+ * Copyright 2014 Amadeus s.a.s.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ariatemplates.seleniumjavarobot;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.openqa.selenium.Point;
+
+// Spare browser started in the background while the active one is running, so
+// that it can replace it as soon as it exits. The spare browser is kept out of
+// the screen until it is used (it is created there when the browser allows
+// it, and it is not maximized or placed before), and it is only calibrated at
+// that time (as calibration needs the window to be visible). A spare browser
+// which stays unused for too long is replaced by a new one.
+public class StandbyBrowser {
+    static final Point OFFSCREEN_POSITION = new Point(-10000, 0);
+
+    private final IRobotizedBrowserFactory robotizedBrowserFactory;
+    private final long maxIdleTime;
+    private final LogTarget logTarget = SeleniumJavaRobot.getLogTarget();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(SeleniumJavaRobot.withLogTarget(logTarget, r), "selenium-java-robot-standby");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // The following fields are guarded by this:
+    private Future<RobotizedBrowser> standby;
+    private ScheduledFuture<?> retirement;
+    private boolean closed;
+
+    public StandbyBrowser(IRobotizedBrowserFactory robotizedBrowserFactory, long maxIdleTime) {
+        this.robotizedBrowserFactory = robotizedBrowserFactory;
+        this.maxIdleTime = maxIdleTime;
+    }
+
+    // Starts a spare browser in the background, if there is none yet.
+    public synchronized void prepare() {
+        if (closed || standby != null) {
+            return;
+        }
+        final AtomicReference<Future<RobotizedBrowser>> future = new AtomicReference<Future<RobotizedBrowser>>();
+        standby = executor.submit(new Callable<RobotizedBrowser>() {
+            public RobotizedBrowser call() {
+                long startTime = System.currentTimeMillis();
+                RobotizedBrowser robotizedBrowser = robotizedBrowserFactory.createStandbyRobotizedBrowser();
+                SeleniumJavaRobot.log(String.format("Standby browser ready in %d ms.", System.currentTimeMillis() - startTime));
+                scheduleRetirement(future);
+                return robotizedBrowser;
+            }
+        });
+        future.set(standby);
+    }
+
+    private synchronized void scheduleRetirement(AtomicReference<Future<RobotizedBrowser>> future) {
+        final Future<RobotizedBrowser> retiredStandby = future.get();
+        if (maxIdleTime <= 0 || closed || standby != retiredStandby) {
+            // already taken
+            return;
+        }
+        retirement = executor.schedule(new Runnable() {
+            public void run() {
+                synchronized (StandbyBrowser.this) {
+                    if (standby != retiredStandby) {
+                        return;
+                    }
+                    standby = null;
+                    retirement = null;
+                }
+                SeleniumJavaRobot.log("Replacing the standby browser which was not used for too long.");
+                stopBrowser(retiredStandby);
+                prepare();
+            }
+        }, maxIdleTime, TimeUnit.MILLISECONDS);
+    }
+
+    // Returns the spare browser, ready to be calibrated (waiting for it if it
+    // is still starting), or null if there is none or it failed to start.
+    public RobotizedBrowser take() throws InterruptedException {
+        Future<RobotizedBrowser> standby;
+        synchronized (this) {
+            standby = this.standby;
+            this.standby = null;
+            if (retirement != null) {
+                retirement.cancel(false);
+                retirement = null;
+            }
+        }
+        if (standby == null) {
+            return null;
+        }
+        RobotizedBrowser robotizedBrowser;
+        try {
+            robotizedBrowser = standby.get();
+        } catch (ExecutionException e) {
+            SeleniumJavaRobot.log("The standby browser failed to start: " + e.getCause());
+            return null;
+        }
+        try {
+            robotizedBrowser.placeWindow();
+        } catch (RuntimeException e) {
+            SeleniumJavaRobot.log("The standby browser cannot be used: " + e);
+            robotizedBrowser.stop();
+            return null;
+        }
+        return robotizedBrowser;
+    }
+
+    public void close() {
+        Future<RobotizedBrowser> standby;
+        synchronized (this) {
+            closed = true;
+            standby = this.standby;
+            this.standby = null;
+            if (retirement != null) {
+                retirement.cancel(false);
+                retirement = null;
+            }
+        }
+        // a browser being started is not interrupted, it is stopped when
+        // ready:
+        executor.shutdown();
+        if (standby != null) {
+            stopBrowser(standby);
+        }
+    }
+
+    private static void stopBrowser(Future<RobotizedBrowser> standby) {
+        if (standby.cancel(false)) {
+            return;
+        }
+        try {
+            standby.get().stop();
+        } catch (ExecutionException e) {
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2014 Amadeus s.a.s.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ariatemplates.seleniumjavarobot;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import org.openqa.selenium.OutputType;
+
+// Robot which does not use the mouse and keyboard of the system: it keeps
+// their state (position of the pointer in the page, pressed buttons and
+// modifiers) and queues the corresponding DOM events, which are then
+// dispatched by executor.js inside the page (see Executor). Coordinates are
+// relative to the viewport of the page, so no calibration is needed, and
+// screen captures are cropped from a screenshot taken by the browser.
+public class SyntheticRobot implements IRobot {
+    // Masks of the left, middle and right buttons, with the corresponding
+    // values of the button and buttons properties of DOM mouse events:
+    private static final int[] BUTTON_MASKS = { InputEvent.BUTTON1_DOWN_MASK, InputEvent.BUTTON2_DOWN_MASK, InputEvent.BUTTON3_DOWN_MASK };
+    private static final int[] DOM_BUTTONS = { 0, 1, 2 };
+    private static final int[] DOM_BUTTONS_FLAGS = { 1, 4, 2 };
+
+    // Java key codes (KeyEvent.VK_*) whose DOM key code is different:
+    private static final Map<Integer, Integer> domKeyCodes = new HashMap<Integer, Integer>();
+    // Characters typed by keys (with a US keyboard layout), without and with
+    // shift:
+    private static final Map<Integer, String> keyChars = new HashMap<Integer, String>();
+    static {
+        for (int i = KeyEvent.VK_A; i <= KeyEvent.VK_Z; i++) {
+            keyChars.put(i, String.valueOf((char) ('a' + i - KeyEvent.VK_A)) + (char) i);
+        }
+        String shiftedDigits = ")!@#$%^&*(";
+        for (int i = KeyEvent.VK_0; i <= KeyEvent.VK_9; i++) {
+            keyChars.put(i, String.valueOf((char) i) + shiftedDigits.charAt(i - KeyEvent.VK_0));
+        }
+        for (int i = KeyEvent.VK_NUMPAD0; i <= KeyEvent.VK_NUMPAD9; i++) {
+            String digit = String.valueOf((char) ('0' + i - KeyEvent.VK_NUMPAD0));
+            keyChars.put(i, digit + digit);
+        }
+        keyChars.put(KeyEvent.VK_SPACE, "  ");
+        keyChars.put(KeyEvent.VK_ENTER, "\r\r");
+        keyChars.put(KeyEvent.VK_MULTIPLY, "**");
+        keyChars.put(KeyEvent.VK_ADD, "++");
+        keyChars.put(KeyEvent.VK_SUBTRACT, "--");
+        keyChars.put(KeyEvent.VK_DECIMAL, "..");
+        keyChars.put(KeyEvent.VK_DIVIDE, "//");
+        addPunctuation(KeyEvent.VK_COMMA, 188, ",<");
+        addPunctuation(KeyEvent.VK_MINUS, 189, "-_");
+        addPunctuation(KeyEvent.VK_PERIOD, 190, ".>");
+        addPunctuation(KeyEvent.VK_SLASH, 191, "/?");
+        addPunctuation(KeyEvent.VK_SEMICOLON, 186, ";:");
+        addPunctuation(KeyEvent.VK_EQUALS, 187, "=+");
+        addPunctuation(KeyEvent.VK_OPEN_BRACKET, 219, "[{");
+        addPunctuation(KeyEvent.VK_BACK_SLASH, 220, "\\|");
+        addPunctuation(KeyEvent.VK_CLOSE_BRACKET, 221, "]}");
+        addPunctuation(KeyEvent.VK_BACK_QUOTE, 192, "`~");
+        addPunctuation(KeyEvent.VK_QUOTE, 222, "'\"");
+        domKeyCodes.put(KeyEvent.VK_ENTER, 13);
+        domKeyCodes.put(KeyEvent.VK_DELETE, 46);
+        domKeyCodes.put(KeyEvent.VK_INSERT, 45);
+        domKeyCodes.put(KeyEvent.VK_META, 91);
+        domKeyCodes.put(KeyEvent.VK_WINDOWS, 91);
+        domKeyCodes.put(KeyEvent.VK_CONTEXT_MENU, 93);
+        domKeyCodes.put(KeyEvent.VK_NUM_LOCK, 144);
+        domKeyCodes.put(KeyEvent.VK_SCROLL_LOCK, 145);
+        domKeyCodes.put(KeyEvent.VK_PRINTSCREEN, 44);
+    }
+
+    private static void addPunctuation(int keycode, int domKeyCode, String chars) {
+        keyChars.put(keycode, chars);
+        domKeyCodes.put(keycode, domKeyCode);
+    }
+
+    // Java key codes which are also DOM key codes (letters, digits, function
+    // keys, arrows...):
+    private static boolean isSameKeyCode(int keycode) {
+        return (keycode >= KeyEvent.VK_BACK_SPACE && keycode <= KeyEvent.VK_TAB) || keycode == KeyEvent.VK_SHIFT || keycode == KeyEvent.VK_CONTROL
+                || keycode == KeyEvent.VK_ALT || keycode == KeyEvent.VK_PAUSE || keycode == KeyEvent.VK_CAPS_LOCK || keycode == KeyEvent.VK_ESCAPE
+                || (keycode >= KeyEvent.VK_SPACE && keycode <= KeyEvent.VK_DOWN) || (keycode >= KeyEvent.VK_0 && keycode <= KeyEvent.VK_9)
+                || (keycode >= KeyEvent.VK_A && keycode <= KeyEvent.VK_Z)
+                || (keycode >= KeyEvent.VK_NUMPAD0 && keycode <= KeyEvent.VK_DIVIDE && keycode != KeyEvent.VK_SEPARATOR)
+                || (keycode >= KeyEvent.VK_F1 && keycode <= KeyEvent.VK_F12);
+    }
+
+    // Throws IllegalArgumentException (as java.awt.Robot) for unknown key
+    // codes.
+    private static int toDomKeyCode(int keycode) {
+        Integer domKeyCode = domKeyCodes.get(keycode);
+        if (domKeyCode != null) {
+            return domKeyCode;
+        }
+        if (!isSameKeyCode(keycode)) {
+            throw new IllegalArgumentException("Invalid key code");
+        }
+        return keycode;
+    }
+
+    // The following fields are guarded by this:
+    private int x;
+    private int y;
+    // Value of the buttons property of DOM mouse events:
+    private int pressedButtons;
+    private boolean shiftKey;
+    private boolean ctrlKey;
+    private boolean altKey;
+    private boolean metaKey;
+    private List<Map<String, Object>> events = new ArrayList<Map<String, Object>>();
+    private IBrowser browser;
+
+    // Sets the browser used for screen captures (which is only known once the
+    // robot is created, see LocalRobotizedBrowserFactory).
+    public synchronized void setBrowser(IBrowser browser) {
+        this.browser = browser;
+    }
+
+    // Returns the events queued since the last call, in the order in which
+    // they have to be dispatched.
+    public synchronized List<Map<String, Object>> takeEvents() {
+        List<Map<String, Object>> result = events;
+        events = new ArrayList<Map<String, Object>>();
+        return result;
+    }
+
+    private Map<String, Object> addEvent(String type) {
+        Map<String, Object> event = new HashMap<String, Object>();
+        event.put("type", type);
+        event.put("x", x);
+        event.put("y", y);
+        event.put("buttons", pressedButtons);
+        event.put("shiftKey", shiftKey);
+        event.put("ctrlKey", ctrlKey);
+        event.put("altKey", altKey);
+        event.put("metaKey", metaKey);
+        events.add(event);
+        return event;
+    }
+
+    // Script returning the scroll position, the size of the viewport and the
+    // ratio between the pixels of screenshots and the CSS pixels:
+    private static final String VIEWPORT_SCRIPT = "var d = document.documentElement; return [window.pageXOffset || d.scrollLeft || 0,"
+            + " window.pageYOffset || d.scrollTop || 0, window.innerWidth || d.clientWidth, window.innerHeight || d.clientHeight,"
+            + " window.devicePixelRatio || 1];";
+
+    public BufferedImage createScreenCapture(Rectangle screenRect) {
+        if (screenRect.width <= 0 || screenRect.height <= 0) {
+            throw new IllegalArgumentException("Rectangle width and height must be > 0");
+        }
+        IBrowser browser;
+        synchronized (this) {
+            browser = this.browser;
+        }
+        if (browser == null) {
+            throw new IllegalStateException("Screen captures are not available before the browser is started.");
+        }
+        List<?> viewport = (List<?>) browser.executeScript(VIEWPORT_SCRIPT);
+        BufferedImage screenshot;
+        try {
+            screenshot = ImageIO.read(new ByteArrayInputStream(browser.getScreenshotAs(OutputType.BYTES)));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (screenshot == null) {
+            throw new RuntimeException("Invalid screenshot.");
+        }
+        double ratio = ((Number) viewport.get(4)).doubleValue();
+        double x = screenRect.x;
+        double y = screenRect.y;
+        // some browsers (such as Chrome) only take a screenshot of the
+        // viewport, others (such as Firefox) of the whole page
+        if (screenshot.getWidth() > Math.ceil(((Number) viewport.get(2)).intValue() * ratio)
+                || screenshot.getHeight() > Math.ceil(((Number) viewport.get(3)).intValue() * ratio)) {
+            x += ((Number) viewport.get(0)).doubleValue();
+            y += ((Number) viewport.get(1)).doubleValue();
+        }
+        // what is outside of the screenshot is black, as outside of the screen
+        // with java.awt.Robot
+        BufferedImage result = new BufferedImage(screenRect.width, screenRect.height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = result.createGraphics();
+        try {
+            graphics.drawImage(screenshot, 0, 0, screenRect.width, screenRect.height, (int) Math.round(x * ratio), (int) Math.round(y * ratio),
+                    (int) Math.round((x + screenRect.width) * ratio), (int) Math.round((y + screenRect.height) * ratio), null);
+        } finally {
+            graphics.dispose();
+        }
+        return result;
+    }
+
+    private void buttonEvent(int buttons, boolean press) {
+        boolean found = false;
+        // several buttons can be given at the same time
+        for (int i = 0; i < BUTTON_MASKS.length; i++) {
+            if ((buttons & BUTTON_MASKS[i]) != 0) {
+                if (press) {
+                    pressedButtons |= DOM_BUTTONS_FLAGS[i];
+                } else {
+                    pressedButtons &= ~DOM_BUTTONS_FLAGS[i];
+                }
+                addEvent(press ? "mousedown" : "mouseup").put("button", DOM_BUTTONS[i]);
+                found = true;
+            }
+        }
+        if (!found) {
+            throw new IllegalArgumentException("Invalid combination of button flags");
+        }
+    }
+
+    private void keyEvent(int keycode, boolean press) {
+        int domKeyCode = toDomKeyCode(keycode);
+        if (keycode == KeyEvent.VK_SHIFT) {
+            shiftKey = press;
+        } else if (keycode == KeyEvent.VK_CONTROL) {
+            ctrlKey = press;
+        } else if (keycode == KeyEvent.VK_ALT) {
+            altKey = press;
+        } else if (keycode == KeyEvent.VK_META || keycode == KeyEvent.VK_WINDOWS) {
+            metaKey = press;
+        }
+        Map<String, Object> event = addEvent(press ? "keydown" : "keyup");
+        event.put("keyCode", domKeyCode);
+        String chars = keyChars.get(keycode);
+        if (press && chars != null && !ctrlKey && !altKey && !metaKey) {
+            // executor.js dispatches keypress (and types the character) if
+            // keydown is not cancelled
+            event.put("charCode", (int) chars.charAt(shiftKey ? 1 : 0));
+        }
+    }
+
+    public synchronized void keyPress(int keycode) {
+        keyEvent(keycode, true);
+    }
+
+    public synchronized void keyRelease(int keycode) {
+        keyEvent(keycode, false);
+    }
+
+    public synchronized void mouseMove(int x, int y) {
+        // as with a real mouse, moving to the same position has no effect
+        if (x != this.x || y != this.y) {
+            this.x = x;
+            this.y = y;
+            addEvent("mousemove");
+        }
+    }
+
+    public synchronized void mousePress(int buttons) {
+        buttonEvent(buttons, true);
+    }
+
+    public synchronized void mouseRelease(int buttons) {
+        buttonEvent(buttons, false);
+    }
+
+    public synchronized void mouseWheel(int wheelAmt) {
+        // in lines, as java.awt.Robot
+        addEvent("wheel").put("deltaY", wheelAmt);
+    }
+
+    public void sync() {
+        // events are only dispatched once the call is finished
+    }
+}
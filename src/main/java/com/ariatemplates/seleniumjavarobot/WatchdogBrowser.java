@@ -0,0 +1,205 @@
+/*
+ * Copyright 2014 Amadeus s.a.s.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ariatemplates.seleniumjavarobot;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.openqa.selenium.Dimension;
+import org.openqa.selenium.OutputType;
+import org.openqa.selenium.Point;
+
+// Gives a deadline to each call made to the browser. If a call does not
+// complete before its deadline, the browser is considered as hung and it is
+// killed, so that the blocked call fails and the browser can be restarted.
+public class WatchdogBrowser implements IBrowser {
+    private static final long COMMAND_TIMEOUT = Long.getLong("seleniumjavarobot.watchdog.commandtimeout", 30000);
+    // Loading a page can legitimately take longer than other commands:
+    private static final long PAGE_LOAD_TIMEOUT = Long.getLong("seleniumjavarobot.watchdog.pageloadtimeout", 300000);
+    private static final long QUIT_TIMEOUT = Long.getLong("seleniumjavarobot.watchdog.quittimeout", 10000);
+
+    private static final ThreadFactory DAEMON_THREAD_FACTORY = new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "selenium-java-robot-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(DAEMON_THREAD_FACTORY);
+
+    private final IBrowser browser;
+    // The threads of the watchdog are shared by all browsers, the logs go to
+    // the session of the browser:
+    private final LogTarget logTarget = SeleniumJavaRobot.getLogTarget();
+    private volatile long scriptTimeout = 0;
+    private volatile long killTime = 0;
+
+    public WatchdogBrowser(IBrowser browser) {
+        if (browser == null) {
+            throw new NullPointerException();
+        }
+        this.browser = browser;
+    }
+
+    // Returns the time (as returned by System.currentTimeMillis) at which the
+    // browser was killed by the watchdog, or 0 if it was not killed.
+    public long getKillTime() {
+        return killTime;
+    }
+
+    private ScheduledFuture<?> arm(final String commandName, final long timeout) {
+        if (timeout <= 0) {
+            return null;
+        }
+        return timer.schedule(SeleniumJavaRobot.withLogTarget(logTarget, new Runnable() {
+            public void run() {
+                onDeadlineExpired(commandName, timeout);
+            }
+        }), timeout, TimeUnit.MILLISECONDS);
+    }
+
+    private void disarm(ScheduledFuture<?> alarm) {
+        if (alarm != null) {
+            alarm.cancel(false);
+        }
+    }
+
+    private void onDeadlineExpired(String commandName, long timeout) {
+        synchronized (this) {
+            if (killTime != 0) {
+                return;
+            }
+            killTime = System.currentTimeMillis();
+        }
+        SeleniumJavaRobot.log(String.format("%s did not complete within %d ms, killing the browser.", commandName, timeout));
+        // Killing can take some time, it must not delay other deadlines:
+        DAEMON_THREAD_FACTORY.newThread(SeleniumJavaRobot.withLogTarget(logTarget, new Runnable() {
+            public void run() {
+                try {
+                    browser.kill();
+                } catch (RuntimeException e) {
+                    SeleniumJavaRobot.log("Failed to kill the browser: " + e);
+                }
+            }
+        })).start();
+    }
+
+    public Object executeScript(String script, Object... args) {
+        ScheduledFuture<?> alarm = arm("executeScript", COMMAND_TIMEOUT);
+        try {
+            return browser.executeScript(script, args);
+        } finally {
+            disarm(alarm);
+        }
+    }
+
+    public Object executeAsyncScript(String script, Object... args) {
+        ScheduledFuture<?> alarm = arm("executeAsyncScript", COMMAND_TIMEOUT > 0 ? COMMAND_TIMEOUT + scriptTimeout : 0);
+        try {
+            return browser.executeAsyncScript(script, args);
+        } finally {
+            disarm(alarm);
+        }
+    }
+
+    public <X> X getScreenshotAs(OutputType<X> target) {
+        ScheduledFuture<?> alarm = arm("getScreenshotAs", COMMAND_TIMEOUT);
+        try {
+            return browser.getScreenshotAs(target);
+        } finally {
+            disarm(alarm);
+        }
+    }
+
+    public void quit() {
+        ScheduledFuture<?> alarm = arm("quit", QUIT_TIMEOUT);
+        try {
+            browser.quit();
+        } finally {
+            disarm(alarm);
+        }
+    }
+
+    public void kill() {
+        browser.kill();
+    }
+
+    public void get(String url) {
+        ScheduledFuture<?> alarm = arm("get", PAGE_LOAD_TIMEOUT);
+        try {
+            browser.get(url);
+        } finally {
+            disarm(alarm);
+        }
+    }
+
+    public Point getWindowPosition() {
+        ScheduledFuture<?> alarm = arm("getWindowPosition", COMMAND_TIMEOUT);
+        try {
+            return browser.getWindowPosition();
+        } finally {
+            disarm(alarm);
+        }
+    }
+
+    public Dimension getWindowSize() {
+        ScheduledFuture<?> alarm = arm("getWindowSize", COMMAND_TIMEOUT);
+        try {
+            return browser.getWindowSize();
+        } finally {
+            disarm(alarm);
+        }
+    }
+
+    public void setWindowPosition(Point position) {
+        ScheduledFuture<?> alarm = arm("setWindowPosition", COMMAND_TIMEOUT);
+        try {
+            browser.setWindowPosition(position);
+        } finally {
+            disarm(alarm);
+        }
+    }
+
+    public void setWindowSize(Dimension size) {
+        ScheduledFuture<?> alarm = arm("setWindowSize", COMMAND_TIMEOUT);
+        try {
+            browser.setWindowSize(size);
+        } finally {
+            disarm(alarm);
+        }
+    }
+
+    public void maximize() {
+        ScheduledFuture<?> alarm = arm("maximize", COMMAND_TIMEOUT);
+        try {
+            browser.maximize();
+        } finally {
+            disarm(alarm);
+        }
+    }
+
+    public void setScriptTimeout(long time, TimeUnit unit) {
+        ScheduledFuture<?> alarm = arm("setScriptTimeout", COMMAND_TIMEOUT);
+        try {
+            browser.setScriptTimeout(time, unit);
+            scriptTimeout = unit.toMillis(time);
+        } finally {
+            disarm(alarm);
+        }
+    }
+}
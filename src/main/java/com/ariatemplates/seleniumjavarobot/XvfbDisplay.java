@@ -0,0 +1,107 @@
+/*
+ * Copyright 2014 Amadeus s.a.s.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ariatemplates.seleniumjavarobot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+// Private X display (started with Xvfb), so that several browsers can be
+// driven in parallel on the same machine, each one with its own mouse and
+// keyboard.
+public class XvfbDisplay {
+    private static final int FIRST_DISPLAY_NUMBER = 99;
+    private static final int MAX_ATTEMPTS = 20;
+    private static final long START_TIMEOUT = 10000;
+    // Display numbers already used in this process:
+    private static int nextDisplayNumber = FIRST_DISPLAY_NUMBER;
+
+    private final int displayNumber;
+    private final Process process;
+
+    private XvfbDisplay(int displayNumber, Process process) {
+        this.displayNumber = displayNumber;
+        this.process = process;
+    }
+
+    // Value of the DISPLAY environment variable for this display.
+    public String getName() {
+        return ":" + displayNumber;
+    }
+
+    public static XvfbDisplay start() throws IOException, InterruptedException {
+        String executable = System.getProperty("seleniumjavarobot.xvfb.path", "Xvfb");
+        String screen = System.getProperty("seleniumjavarobot.xvfb.screen", "1280x1024x24");
+        for (int i = 0; i < MAX_ATTEMPTS; i++) {
+            int displayNumber = allocateDisplayNumber();
+            Process process = new ProcessBuilder(executable, ":" + displayNumber, "-screen", "0", screen, "-nolisten", "tcp").redirectErrorStream(true)
+                    .start();
+            drain(process.getInputStream());
+            if (waitForDisplay(displayNumber, process)) {
+                SeleniumJavaRobot.log("Started Xvfb on display :" + displayNumber);
+                return new XvfbDisplay(displayNumber, process);
+            }
+            // the display is probably used by another process, trying the
+            // next one
+            process.destroy();
+        }
+        throw new IOException("Could not start Xvfb.");
+    }
+
+    private static synchronized int allocateDisplayNumber() {
+        while (new File("/tmp/.X" + nextDisplayNumber + "-lock").exists()) {
+            nextDisplayNumber++;
+        }
+        return nextDisplayNumber++;
+    }
+
+    private static boolean waitForDisplay(int displayNumber, Process process) throws InterruptedException {
+        File socket = new File("/tmp/.X11-unix/X" + displayNumber);
+        long endTime = System.currentTimeMillis() + START_TIMEOUT;
+        while (System.currentTimeMillis() < endTime) {
+            if (socket.exists()) {
+                return true;
+            }
+            try {
+                process.exitValue();
+                // the process exited
+                return false;
+            } catch (IllegalThreadStateException e) {
+            }
+            Thread.sleep(50);
+        }
+        return false;
+    }
+
+    private static void drain(final InputStream inputStream) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    IOUtils.copy(inputStream, new NullOutputStream());
+                } catch (IOException e) {
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void close() {
+        process.destroy();
+    }
+}
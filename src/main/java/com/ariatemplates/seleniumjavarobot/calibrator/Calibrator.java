@@ -24,6 +24,7 @@ import org.apache.commons.io.IOUtils;
 import org.openqa.selenium.Dimension;
 import org.openqa.selenium.Point;
 
+import com.ariatemplates.seleniumjavarobot.IRobot;
 import com.ariatemplates.seleniumjavarobot.RobotizedBrowser;
 import com.ariatemplates.seleniumjavarobot.SeleniumJavaRobot;
 
@@ -41,6 +42,9 @@ public class Calibrator {
     private static final Color DEFAULT_CALIBRATION_COLOR = new Color(237, 22, 31);
     private static final int DEFAULT_COLOR_TOLERANCE = 50;
     private static final int BORDER = 10;
+    // Attempts to find a marker (it may not be displayed yet):
+    private static final int MARKER_ATTEMPTS = 10;
+    private static final int MARKER_RETRY_DELAY = 50;
 
     public static Point calibrate(RobotizedBrowser robotizedBrowser) throws InterruptedException {
         return calibrate(robotizedBrowser, DEFAULT_CALIBRATION_COLOR, DEFAULT_COLOR_TOLERANCE);
@@ -68,4 +72,23 @@ public class Calibrator {
         }
         return new Point(rect.x - BORDER - windowPosition.x, rect.y - BORDER - windowPosition.y);
     }
+
+    // Looks for a marker displayed by the page (a square of the calibration
+    // color, surrounded by a border of another color) in a small area around
+    // its expected position on the screen, and returns its actual position
+    // (or null if it was not found).
+    public static Point findMarker(IRobot robot, Rectangle expectedMarker, int margin) throws InterruptedException {
+        Rectangle area = new Rectangle(expectedMarker);
+        area.grow(margin, margin);
+        area = area.intersection(new Rectangle(0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE));
+        for (int i = 0; i < MARKER_ATTEMPTS; i++) {
+            Rectangle rect = RectangleFinder.findRectangle(robot, DEFAULT_CALIBRATION_COLOR, area, expectedMarker.width, expectedMarker.height,
+                    DEFAULT_COLOR_TOLERANCE);
+            if (rect != null) {
+                return new Point(rect.x, rect.y);
+            }
+            Thread.sleep(MARKER_RETRY_DELAY);
+        }
+        return null;
+    }
 }
@@ -0,0 +1,422 @@
+/*
+ * Copyright 2014 Amadeus s.a.s.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ariatemplates.seleniumjavarobot.calibrator;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import com.ariatemplates.seleniumjavarobot.IRobot;
+import com.ariatemplates.seleniumjavarobot.capture.BufferPool;
+import com.ariatemplates.seleniumjavarobot.capture.ImageThreads;
+import com.ariatemplates.seleniumjavarobot.capture.TileHasher;
+
+// Finds a template image in a screen capture (as RectangleFinder does for a
+// rectangle of one color). The difference between the template and a part of
+// the capture is the sum of the absolute differences of the red, green and
+// blue components of their pixels, and the template matches if the average
+// difference per component is not greater than the tolerance (0 to 255).
+//
+// Both images are first reduced (by 2, several times) in a pyramid: the best
+// candidates found in the smallest images (with a larger tolerance) are
+// refined at each bigger level.
+// If this does not give a match (the reduced images can be misleading, for
+// example with repetitive content), all the positions are checked in the
+// original images. In both cases, a position is skipped as soon as its
+// difference is too big, and the integral images of the capture and of the
+// template give a lower bound of the difference (from the sums of blocks of
+// the template) without comparing the pixels. Positions are split
+// in rows of tiles checked in parallel on all the processors. Results are
+// cached for captures and templates which did not change.
+public class ImageFinder {
+    private static final int CANDIDATES_COUNT = 8;
+    private static final int MIN_PYRAMID_TEMPLATE_SIZE = 16;
+    private static final int MAX_PYRAMID_LEVELS = 4;
+    // Distance (at the bigger level) around the position of a candidate
+    // found in a reduced image in which it is refined:
+    private static final int REFINE_RADIUS = 2;
+    // Added to the tolerance in the reduced images, where the template is not
+    // aligned with the pixels of the capture:
+    private static final int REDUCED_TOLERANCE_MARGIN = 32;
+    // The template is split in (up to) BLOCKS x BLOCKS blocks to compute a
+    // lower bound of the difference from the integral images:
+    private static final int BLOCKS = 4;
+    // Sums of the integral images are computed with ints (cf Image.sum):
+    private static final int MAX_TEMPLATE_PIXELS = 1 << 21;
+    private static final int CACHE_SIZE = 32;
+    private static final Rectangle NOT_FOUND = new Rectangle();
+    private static final Map<String, Rectangle> cache = new LinkedHashMap<String, Rectangle>(CACHE_SIZE, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Rectangle> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private static class Image {
+        final int[] pixels;
+        final int width;
+        final int height;
+        // Sums of r + g + b of the pixels above and on the left of each
+        // position, (width + 1) x (height + 1):
+        int[] integral;
+        // For templates, limits of the blocks (BLOCKS + 1 values, or less
+        // for small templates) and sums of their pixels, row by row:
+        int[] blockXs;
+        int[] blockYs;
+        int[] blockSums;
+
+        Image(int[] pixels, int width, int height) {
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+        }
+
+        Image reduce() {
+            int newWidth = width / 2;
+            int newHeight = height / 2;
+            int[] newPixels = new int[newWidth * newHeight];
+            for (int y = 0; y < newHeight; y++) {
+                for (int x = 0; x < newWidth; x++) {
+                    int i = 2 * y * width + 2 * x;
+                    int p1 = pixels[i];
+                    int p2 = pixels[i + 1];
+                    int p3 = pixels[i + width];
+                    int p4 = pixels[i + width + 1];
+                    int r = (((p1 >> 16) & 0xff) + ((p2 >> 16) & 0xff) + ((p3 >> 16) & 0xff) + ((p4 >> 16) & 0xff)) / 4;
+                    int g = (((p1 >> 8) & 0xff) + ((p2 >> 8) & 0xff) + ((p3 >> 8) & 0xff) + ((p4 >> 8) & 0xff)) / 4;
+                    int b = ((p1 & 0xff) + (p2 & 0xff) + (p3 & 0xff) + (p4 & 0xff)) / 4;
+                    newPixels[y * newWidth + x] = (r << 16) | (g << 8) | b;
+                }
+            }
+            return new Image(newPixels, newWidth, newHeight);
+        }
+
+        void computeIntegral(int[] buffer) {
+            int stride = width + 1;
+            integral = buffer;
+            for (int x = 0; x < stride; x++) {
+                integral[x] = 0;
+            }
+            for (int y = 0; y < height; y++) {
+                int rowSum = 0;
+                integral[(y + 1) * stride] = 0;
+                for (int x = 0; x < width; x++) {
+                    rowSum += componentsSum(pixels[y * width + x]);
+                    integral[(y + 1) * stride + x + 1] = integral[y * stride + x + 1] + rowSum;
+                }
+            }
+        }
+
+        // The values of integral can overflow, but the result is right as
+        // long as the sum of the given area fits in an int (which is the
+        // case for areas of up to MAX_TEMPLATE_PIXELS).
+        int sum(int x, int y, int areaWidth, int areaHeight) {
+            int stride = width + 1;
+            return integral[(y + areaHeight) * stride + x + areaWidth] - integral[y * stride + x + areaWidth] - integral[(y + areaHeight) * stride + x]
+                    + integral[y * stride + x];
+        }
+
+        void computeBlocks() {
+            computeIntegral(new int[(width + 1) * (height + 1)]);
+            blockXs = getBlockLimits(width);
+            blockYs = getBlockLimits(height);
+            int columns = blockXs.length - 1;
+            int rows = blockYs.length - 1;
+            blockSums = new int[columns * rows];
+            for (int row = 0; row < rows; row++) {
+                for (int column = 0; column < columns; column++) {
+                    blockSums[row * columns + column] = sum(blockXs[column], blockYs[row], blockXs[column + 1] - blockXs[column], blockYs[row + 1]
+                            - blockYs[row]);
+                }
+            }
+        }
+
+        private static int[] getBlockLimits(int size) {
+            int count = Math.min(BLOCKS, size);
+            int[] result = new int[count + 1];
+            for (int i = 0; i <= count; i++) {
+                result[i] = size * i / count;
+            }
+            return result;
+        }
+    }
+
+    private static int componentsSum(int pixel) {
+        return ((pixel >> 16) & 0xff) + ((pixel >> 8) & 0xff) + (pixel & 0xff);
+    }
+
+    private static class Candidate {
+        final int x;
+        final int y;
+        final long difference;
+
+        Candidate(int x, int y, long difference) {
+            this.x = x;
+            this.y = y;
+            this.difference = difference;
+        }
+    }
+
+    // Best candidates (with the smallest differences), sorted.
+    private static class Candidates {
+        final List<Candidate> list = new ArrayList<Candidate>();
+        final int maxCount;
+        final long maxDifference;
+
+        Candidates(int maxCount, long maxDifference) {
+            this.maxCount = maxCount;
+            this.maxDifference = maxDifference;
+        }
+
+        // Candidates with a bigger difference are not kept.
+        long getBound() {
+            return list.size() < maxCount ? maxDifference : list.get(maxCount - 1).difference - 1;
+        }
+
+        void add(Candidate candidate) {
+            if (candidate.difference > getBound()) {
+                return;
+            }
+            int index = list.size();
+            while (index > 0 && list.get(index - 1).difference > candidate.difference) {
+                index--;
+            }
+            list.add(index, candidate);
+            if (list.size() > maxCount) {
+                list.remove(maxCount);
+            }
+        }
+    }
+
+    // Returns the difference between the template and the part of the image
+    // at x, y, or Long.MAX_VALUE if it is bigger than bound.
+    private static long getDifference(Image image, Image template, int x, int y, long bound) {
+        // the difference of the sums of each block is not greater than the
+        // sum of the differences of its pixels
+        int[] blockXs = template.blockXs;
+        int[] blockYs = template.blockYs;
+        int columns = blockXs.length - 1;
+        long lowerBound = 0;
+        for (int row = 0, i = 0; row < blockYs.length - 1; row++) {
+            int blockY = y + blockYs[row];
+            int blockHeight = blockYs[row + 1] - blockYs[row];
+            for (int column = 0; column < columns; column++, i++) {
+                lowerBound += Math.abs(image.sum(x + blockXs[column], blockY, blockXs[column + 1] - blockXs[column], blockHeight)
+                        - template.blockSums[i]);
+            }
+        }
+        if (lowerBound > bound) {
+            return Long.MAX_VALUE;
+        }
+        int[] imagePixels = image.pixels;
+        int[] templatePixels = template.pixels;
+        long difference = 0;
+        for (int ty = 0; ty < template.height; ty++) {
+            int i = (y + ty) * image.width + x;
+            int j = ty * template.width;
+            for (int end = j + template.width; j < end; i++, j++) {
+                int p1 = imagePixels[i];
+                int p2 = templatePixels[j];
+                difference += Math.abs(((p1 >> 16) & 0xff) - ((p2 >> 16) & 0xff)) + Math.abs(((p1 >> 8) & 0xff) - ((p2 >> 8) & 0xff))
+                        + Math.abs((p1 & 0xff) - (p2 & 0xff));
+            }
+            if (difference > bound) {
+                return Long.MAX_VALUE;
+            }
+        }
+        return difference;
+    }
+
+    // Checks all the positions, in parallel.
+    private static List<Candidate> searchAll(final Image image, final Image template, final long maxDifference, final int maxCount)
+            throws InterruptedException {
+        final int maxX = image.width - template.width;
+        int positionsRows = image.height - template.height + 1;
+        int tasksCount = Math.min(positionsRows, ImageThreads.COUNT * 4);
+        List<Future<Candidates>> futures = new ArrayList<Future<Candidates>>();
+        try {
+            for (int task = 0; task < tasksCount; task++) {
+                final int startY = positionsRows * task / tasksCount;
+                final int endY = positionsRows * (task + 1) / tasksCount;
+                futures.add(ImageThreads.POOL.submit(new Callable<Candidates>() {
+                    public Candidates call() {
+                        Candidates candidates = new Candidates(maxCount, maxDifference);
+                        for (int y = startY; y < endY; y++) {
+                            for (int x = 0; x <= maxX; x++) {
+                                long difference = getDifference(image, template, x, y, candidates.getBound());
+                                if (difference != Long.MAX_VALUE) {
+                                    candidates.add(new Candidate(x, y, difference));
+                                }
+                            }
+                        }
+                        return candidates;
+                    }
+                }));
+            }
+            Candidates result = new Candidates(maxCount, maxDifference);
+            for (Future<Candidates> future : futures) {
+                for (Candidate candidate : future.get().list) {
+                    result.add(candidate);
+                }
+            }
+            return result.list;
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            for (Future<Candidates> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    // Checks the positions around the candidates of the smaller level.
+    private static List<Candidate> refine(Image image, Image template, List<Candidate> smallerCandidates, long maxDifference, int maxCount) {
+        Candidates result = new Candidates(maxCount, maxDifference);
+        int maxX = image.width - template.width;
+        int maxY = image.height - template.height;
+        for (Candidate candidate : smallerCandidates) {
+            int startX = Math.max(0, 2 * candidate.x - REFINE_RADIUS);
+            int endX = Math.min(maxX, 2 * candidate.x + REFINE_RADIUS);
+            int startY = Math.max(0, 2 * candidate.y - REFINE_RADIUS);
+            int endY = Math.min(maxY, 2 * candidate.y + REFINE_RADIUS);
+            for (int y = startY; y <= endY; y++) {
+                for (int x = startX; x <= endX; x++) {
+                    long difference = getDifference(image, template, x, y, result.getBound());
+                    if (difference != Long.MAX_VALUE) {
+                        result.add(new Candidate(x, y, difference));
+                    }
+                }
+            }
+        }
+        return result.list;
+    }
+
+    // Returns the position of the template in the screen (null if it is not
+    // found in the given area).
+    public static Rectangle findImage(IRobot robot, Rectangle screenRect, BufferedImage template, int tolerance) throws InterruptedException {
+        BufferedImage capture = robot.createScreenCapture(screenRect);
+        int width = capture.getWidth();
+        int height = capture.getHeight();
+        int templateWidth = template.getWidth();
+        int templateHeight = template.getHeight();
+        BufferPool bufferPool = BufferPool.INSTANCE;
+        int[] pixels = bufferPool.getIntBuffer(width * height);
+        try {
+            capture.getRGB(0, 0, width, height, pixels, 0, width);
+            int[] templatePixels = template.getRGB(0, 0, templateWidth, templateHeight, null, 0, templateWidth);
+            Rectangle result = findImage(pixels, width, height, templatePixels, templateWidth, templateHeight, tolerance);
+            if (result != null) {
+                result.x += screenRect.x;
+                result.y += screenRect.y;
+            }
+            return result;
+        } finally {
+            bufferPool.release(pixels);
+        }
+    }
+
+    // Same as the previous method with images given as arrays of RGB
+    // pixels, row by row (pixels can be bigger than width x height). The
+    // result is relative to the image.
+    public static Rectangle findImage(int[] pixels, int width, int height, int[] templatePixels, int templateWidth, int templateHeight, int tolerance)
+            throws InterruptedException {
+        if (templateWidth <= 0 || templateHeight <= 0 || templateWidth * templateHeight > MAX_TEMPLATE_PIXELS) {
+            throw new IllegalArgumentException("Invalid template size: " + templateWidth + "x" + templateHeight);
+        }
+        if (tolerance < 0 || tolerance > 255) {
+            throw new IllegalArgumentException("The tolerance must be between 0 and 255");
+        }
+        if (templateWidth > width || templateHeight > height) {
+            return null;
+        }
+        String cacheKey = width + "x" + height + ":" + TileHasher.hash(pixels, width * height) + "/" + templateWidth + "x" + templateHeight + ":"
+                + TileHasher.hash(templatePixels, templateWidth * templateHeight) + "/" + tolerance;
+        synchronized (cache) {
+            Rectangle cachedResult = cache.get(cacheKey);
+            if (cachedResult != null) {
+                return cachedResult == NOT_FOUND ? null : new Rectangle(cachedResult);
+            }
+        }
+        Rectangle result = search(new Image(pixels, width, height), new Image(templatePixels, templateWidth, templateHeight), tolerance);
+        synchronized (cache) {
+            cache.put(cacheKey, result != null ? new Rectangle(result) : NOT_FOUND);
+        }
+        return result;
+    }
+
+    private static long getMaxDifference(Image template, int tolerance) {
+        return (long) tolerance * 3 * template.width * template.height;
+    }
+
+    private static Rectangle search(Image image, Image template, int tolerance) throws InterruptedException {
+        long maxDifference = getMaxDifference(template, tolerance);
+        List<Image> images = new ArrayList<Image>();
+        List<Image> templates = new ArrayList<Image>();
+        images.add(image);
+        templates.add(template);
+        while (images.size() < MAX_PYRAMID_LEVELS && template.width / 2 >= MIN_PYRAMID_TEMPLATE_SIZE
+                && template.height / 2 >= MIN_PYRAMID_TEMPLATE_SIZE) {
+            image = image.reduce();
+            template = template.reduce();
+            images.add(image);
+            templates.add(template);
+        }
+        BufferPool bufferPool = BufferPool.INSTANCE;
+        List<int[]> integralBuffers = new ArrayList<int[]>();
+        try {
+            for (Image curTemplate : templates) {
+                curTemplate.computeBlocks();
+            }
+            for (Image curImage : images) {
+                int[] buffer = bufferPool.getIntBuffer((curImage.width + 1) * (curImage.height + 1));
+                integralBuffers.add(buffer);
+                curImage.computeIntegral(buffer);
+            }
+            List<Candidate> candidates = Collections.emptyList();
+            int levels = images.size();
+            if (levels > 1) {
+                int reducedTolerance = Math.min(255, tolerance + REDUCED_TOLERANCE_MARGIN);
+                candidates = searchAll(images.get(levels - 1), templates.get(levels - 1),
+                        getMaxDifference(templates.get(levels - 1), reducedTolerance), CANDIDATES_COUNT);
+                for (int level = levels - 2; level >= 0; level--) {
+                    Image curTemplate = templates.get(level);
+                    candidates = refine(images.get(level), curTemplate, candidates,
+                            level == 0 ? maxDifference : getMaxDifference(curTemplate, reducedTolerance), CANDIDATES_COUNT);
+                }
+            }
+            if (candidates.isEmpty()) {
+                candidates = searchAll(images.get(0), templates.get(0), maxDifference, 1);
+            }
+            if (candidates.isEmpty()) {
+                return null;
+            }
+            Candidate best = candidates.get(0);
+            return new Rectangle(best.x, best.y, templates.get(0).width, templates.get(0).height);
+        } finally {
+            for (int[] buffer : integralBuffers) {
+                bufferPool.release(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014 Amadeus s.a.s.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ariatemplates.seleniumjavarobot.capture;
+
+import java.util.LinkedList;
+
+// Pool of the arrays used to process screen captures, so that capturing the
+// same region again and again does not allocate (and garbage collect) new
+// big arrays each time.
+public class BufferPool {
+    public static final BufferPool INSTANCE = new BufferPool();
+
+    // Maximum total size in bytes of the arrays kept in the pool (the oldest
+    // ones are dropped first, and bigger arrays are never kept), which is
+    // enough for a few full HD captures:
+    private static final long MAX_POOLED_BYTES = 32 * 1024 * 1024;
+
+    // int[] and byte[] arrays, from the oldest to the most recently released:
+    private final LinkedList<Object> buffers = new LinkedList<Object>();
+    private long pooledBytes = 0;
+
+    // Returns the smallest pooled array of at least the given size, or a new
+    // one (the content of the array is not cleared).
+    public synchronized int[] getIntBuffer(int minSize) {
+        int[] result = null;
+        for (Object buffer : buffers) {
+            if (buffer instanceof int[]) {
+                int[] intBuffer = (int[]) buffer;
+                if (intBuffer.length >= minSize && (result == null || intBuffer.length < result.length)) {
+                    result = intBuffer;
+                }
+            }
+        }
+        if (result == null) {
+            return new int[minSize];
+        }
+        remove(result);
+        return result;
+    }
+
+    public synchronized byte[] getByteBuffer(int minSize) {
+        byte[] result = null;
+        for (Object buffer : buffers) {
+            if (buffer instanceof byte[]) {
+                byte[] byteBuffer = (byte[]) buffer;
+                if (byteBuffer.length >= minSize && (result == null || byteBuffer.length < result.length)) {
+                    result = byteBuffer;
+                }
+            }
+        }
+        if (result == null) {
+            return new byte[minSize];
+        }
+        remove(result);
+        return result;
+    }
+
+    public synchronized void release(int[] buffer) {
+        add(buffer, 4L * buffer.length);
+    }
+
+    public synchronized void release(byte[] buffer) {
+        add(buffer, buffer.length);
+    }
+
+    private void add(Object buffer, long size) {
+        if (size > MAX_POOLED_BYTES) {
+            return;
+        }
+        while (pooledBytes + size > MAX_POOLED_BYTES) {
+            pooledBytes -= getSize(buffers.removeFirst());
+        }
+        buffers.addLast(buffer);
+        pooledBytes += size;
+    }
+
+    private void remove(Object buffer) {
+        buffers.remove(buffer);
+        pooledBytes -= getSize(buffer);
+    }
+
+    private static long getSize(Object buffer) {
+        return buffer instanceof int[] ? 4L * ((int[]) buffer).length : ((byte[]) buffer).length;
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2014 Amadeus s.a.s.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ariatemplates.seleniumjavarobot.capture;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.io.IOUtils;
+
+import com.ariatemplates.seleniumjavarobot.IRobot;
+import com.ariatemplates.seleniumjavarobot.LogTarget;
+import com.ariatemplates.seleniumjavarobot.SeleniumJavaRobot;
+
+// Keeps in memory the last seconds of what is displayed in the browser window
+// (captured at a fixed rate through the robot) and of the calls executed by the
+// robot, so that they can be written to disk when something goes wrong.
+//
+// Frames are kept in a ring of fixed size. Each frame is compressed with
+// deflate, either alone (key frames) or as the XOR of its pixels with the
+// previous frame (which is mostly zeros when the screen does not change
+// much). Captures and writing to disk are done in a separate thread, so that
+// they do not slow down the calls.
+//
+// The recorder is enabled with the seleniumjavarobot.recorder.dir system
+// property (directory in which recordings are written), and configured with
+// seleniumjavarobot.recorder.fps (frames per second, 5 by default) and
+// seleniumjavarobot.recorder.duration (seconds kept, 30 by default).
+public class FlightRecorder implements Closeable {
+    // Maximum number of frames between two key frames:
+    private static final int KEY_FRAME_INTERVAL = 10;
+    private static final int MAX_CALL_LENGTH = 200;
+
+    private static class Frame {
+        final long time;
+        final int width;
+        final int height;
+        final boolean keyFrame;
+        final byte[] data;
+
+        Frame(long time, int width, int height, boolean keyFrame, byte[] data) {
+            this.time = time;
+            this.width = width;
+            this.height = height;
+            this.keyFrame = keyFrame;
+            this.data = data;
+        }
+    }
+
+    private static class Call {
+        final long time;
+        final String description;
+
+        Call(long time, String description) {
+            this.time = time;
+            this.description = description;
+        }
+    }
+
+    private final IRobot robot;
+    private final File directory;
+    private final long duration;
+    private final LogTarget logTarget = SeleniumJavaRobot.getLogTarget();
+    private final ScheduledExecutorService thread = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(SeleniumJavaRobot.withLogTarget(logTarget, runnable), "FlightRecorder");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    // Screen area to record (the browser window):
+    private volatile Rectangle region;
+    // Ring of frames (guarded by itself):
+    private final Frame[] frames;
+    private int nextFrame;
+    private final LinkedList<Call> calls = new LinkedList<Call>();
+    // The following fields are only used by the recorder thread:
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private int[] pixels = new int[0];
+    private int[] previousPixels;
+    private int previousWidth;
+    private int previousHeight;
+    private int framesSinceKeyFrame;
+    private byte[] rawBuffer = new byte[0];
+    private byte[] compressedBuffer = new byte[0];
+    private boolean captureErrorLogged;
+
+    public static boolean isEnabled() {
+        return System.getProperty("seleniumjavarobot.recorder.dir") != null && Integer.getInteger("seleniumjavarobot.recorder.fps", 5) > 0
+                && Integer.getInteger("seleniumjavarobot.recorder.duration", 30) > 0;
+    }
+
+    // Returns null if the recorder is not enabled.
+    public static FlightRecorder createIfEnabled(IRobot robot) {
+        if (!isEnabled()) {
+            return null;
+        }
+        String directory = System.getProperty("seleniumjavarobot.recorder.dir");
+        int fps = Integer.getInteger("seleniumjavarobot.recorder.fps", 5);
+        int duration = Integer.getInteger("seleniumjavarobot.recorder.duration", 30);
+        return new FlightRecorder(robot, new File(directory), fps, duration);
+    }
+
+    public FlightRecorder(IRobot robot, File directory, int fps, int duration) {
+        this.robot = robot;
+        this.directory = directory;
+        this.duration = duration * 1000L;
+        frames = new Frame[fps * duration];
+        thread.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                sample();
+            }
+        }, 0, 1000 / fps, TimeUnit.MILLISECONDS);
+    }
+
+    public void setRegion(Rectangle region) {
+        this.region = region;
+    }
+
+    public void recordCall(String description) {
+        if (description.length() > MAX_CALL_LENGTH) {
+            description = description.substring(0, MAX_CALL_LENGTH) + "...";
+        }
+        long now = System.currentTimeMillis();
+        synchronized (calls) {
+            calls.add(new Call(now, description));
+            while (calls.getFirst().time < now - duration) {
+                calls.removeFirst();
+            }
+        }
+    }
+
+    private void sample() {
+        Rectangle region = this.region;
+        if (region == null || region.isEmpty()) {
+            return;
+        }
+        BufferedImage image;
+        try {
+            image = robot.createScreenCapture(region);
+        } catch (RuntimeException e) {
+            // an exception would stop the periodic task
+            if (!captureErrorLogged) {
+                captureErrorLogged = true;
+                SeleniumJavaRobot.log("The flight recorder cannot capture the screen: " + e);
+            }
+            return;
+        }
+        long time = System.currentTimeMillis();
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int length = width * height;
+        if (pixels.length < length) {
+            pixels = new int[length];
+        }
+        image.getRGB(0, 0, width, height, pixels, 0, width);
+        boolean keyFrame = previousPixels == null || width != previousWidth || height != previousHeight || framesSinceKeyFrame >= KEY_FRAME_INTERVAL;
+        if (rawBuffer.length < length * 3) {
+            rawBuffer = new byte[length * 3];
+        }
+        for (int i = 0, j = 0; i < length; i++, j += 3) {
+            int pixel = keyFrame ? pixels[i] : pixels[i] ^ previousPixels[i];
+            rawBuffer[j] = (byte) (pixel >> 16);
+            rawBuffer[j + 1] = (byte) (pixel >> 8);
+            rawBuffer[j + 2] = (byte) pixel;
+        }
+        Frame frame = new Frame(time, width, height, keyFrame, compress(length * 3));
+        framesSinceKeyFrame = keyFrame ? 0 : framesSinceKeyFrame + 1;
+        int[] swap = previousPixels != null && previousPixels.length >= length ? previousPixels : new int[length];
+        previousPixels = pixels;
+        pixels = swap;
+        previousWidth = width;
+        previousHeight = height;
+        synchronized (frames) {
+            frames[nextFrame] = frame;
+            nextFrame = (nextFrame + 1) % frames.length;
+        }
+    }
+
+    private byte[] compress(int length) {
+        deflater.reset();
+        deflater.setInput(rawBuffer, 0, length);
+        deflater.finish();
+        int compressedLength = 0;
+        while (!deflater.finished()) {
+            if (compressedLength == compressedBuffer.length) {
+                byte[] newBuffer = new byte[Math.max(4096, compressedBuffer.length * 2)];
+                System.arraycopy(compressedBuffer, 0, newBuffer, 0, compressedLength);
+                compressedBuffer = newBuffer;
+            }
+            compressedLength += deflater.deflate(compressedBuffer, compressedLength, compressedBuffer.length - compressedLength);
+        }
+        byte[] result = new byte[compressedLength];
+        System.arraycopy(compressedBuffer, 0, result, 0, compressedLength);
+        return result;
+    }
+
+    // Writes the recording (as PNG images with the list of calls) in a new
+    // sub-directory whose name contains the reason, and returns its path. The
+    // recording is written asynchronously.
+    public String dump(String reason) {
+        final File target = new File(directory, new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date()) + "-"
+                + reason.replaceAll("[^A-Za-z0-9_-]", "_"));
+        final List<Frame> framesToWrite = new ArrayList<Frame>();
+        synchronized (frames) {
+            for (int i = 0; i < frames.length; i++) {
+                Frame frame = frames[(nextFrame + i) % frames.length];
+                if (frame != null) {
+                    framesToWrite.add(frame);
+                }
+            }
+        }
+        final List<Call> callsToWrite;
+        synchronized (calls) {
+            callsToWrite = new ArrayList<Call>(calls);
+        }
+        thread.execute(new Runnable() {
+            public void run() {
+                try {
+                    write(target, framesToWrite, callsToWrite);
+                    SeleniumJavaRobot.log("Flight recording written to " + target.getAbsolutePath());
+                } catch (IOException e) {
+                    SeleniumJavaRobot.log("Could not write the flight recording: " + e);
+                } catch (DataFormatException e) {
+                    SeleniumJavaRobot.log("Could not write the flight recording: " + e);
+                }
+            }
+        });
+        return target.getAbsolutePath();
+    }
+
+    private static void write(File target, List<Frame> frames, List<Call> calls) throws IOException, DataFormatException {
+        if (!target.mkdirs()) {
+            throw new IOException("Cannot create " + target);
+        }
+        SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS");
+        Writer index = new OutputStreamWriter(new FileOutputStream(new File(target, "frames.txt")), "UTF-8");
+        try {
+            Inflater inflater = new Inflater();
+            byte[] raw = new byte[0];
+            int[] pixels = null;
+            int number = 0;
+            for (Frame frame : frames) {
+                if (pixels == null && !frame.keyFrame) {
+                    // the previous frames were overwritten in the ring
+                    continue;
+                }
+                int length = frame.width * frame.height;
+                if (raw.length < length * 3) {
+                    raw = new byte[length * 3];
+                }
+                inflater.reset();
+                inflater.setInput(frame.data);
+                int rawLength = 0;
+                while (rawLength < length * 3 && !inflater.finished()) {
+                    rawLength += inflater.inflate(raw, rawLength, length * 3 - rawLength);
+                }
+                if (frame.keyFrame) {
+                    pixels = new int[length];
+                }
+                for (int i = 0, j = 0; i < length; i++, j += 3) {
+                    int value = ((raw[j] & 0xff) << 16) | ((raw[j + 1] & 0xff) << 8) | (raw[j + 2] & 0xff);
+                    pixels[i] = frame.keyFrame ? value : pixels[i] ^ value;
+                }
+                BufferedImage image = new BufferedImage(frame.width, frame.height, BufferedImage.TYPE_INT_RGB);
+                image.getRaster().setDataElements(0, 0, frame.width, frame.height, pixels);
+                number++;
+                String fileName = String.format("frame-%05d.png", number);
+                ImageIO.write(image, "png", new File(target, fileName));
+                index.write(timeFormat.format(new Date(frame.time)) + " " + fileName + "\n");
+            }
+            inflater.end();
+        } finally {
+            IOUtils.closeQuietly(index);
+        }
+        Writer callsWriter = new OutputStreamWriter(new FileOutputStream(new File(target, "calls.txt")), "UTF-8");
+        try {
+            for (Call call : calls) {
+                callsWriter.write(timeFormat.format(new Date(call.time)) + " " + call.description + "\n");
+            }
+        } finally {
+            IOUtils.closeQuietly(callsWriter);
+        }
+    }
+
+    // Stops recording, and waits for the recordings being written.
+    public void close() {
+        thread.shutdown();
+        try {
+            thread.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        deflater.end();
+    }
+}
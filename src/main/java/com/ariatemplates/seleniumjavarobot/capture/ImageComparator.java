@@ -0,0 +1,284 @@
+/*
+ * Copyright 2014 Amadeus s.a.s.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ariatemplates.seleniumjavarobot.capture;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import com.ariatemplates.seleniumjavarobot.IRobot;
+
+// Compares regions of the screen with baseline images (PNG files of the
+// directory configured with the seleniumjavarobot.baseline.dir system
+// property), for the compareRegion method of the page (see Executor).
+// A pixel is different if the difference of one of its components (red,
+// green or blue) is bigger than the tolerance. Differences which look like
+// anti-aliasing (detected as in the pixelmatch library: the pixel is between
+// a darker and a brighter neighbour, which belong to uniform areas in both
+// images) can be ignored. Rows of the images are compared in parallel.
+public class ImageComparator {
+    public static final ImageComparator INSTANCE = new ImageComparator();
+    // Decoded baselines are kept in memory, as long as they do not use more
+    // than this number of pixels (the least recently used ones are forgotten
+    // first):
+    private static final long MAX_CACHED_PIXELS = 4 * 1920 * 1080;
+    // Colors of the diff image:
+    private static final int DIFFERENT_COLOR = 0xff0000;
+    private static final int ANTIALIASED_COLOR = 0xffff00;
+
+    private static class Baseline {
+        public final long lastModified;
+        public final int width;
+        public final int height;
+        public final int[] pixels;
+
+        public Baseline(long lastModified, int width, int height, int[] pixels) {
+            this.lastModified = lastModified;
+            this.width = width;
+            this.height = height;
+            this.pixels = pixels;
+        }
+    }
+
+    // Guarded by this:
+    private final Map<File, Baseline> baselines = new LinkedHashMap<File, Baseline>(16, 0.75f, true);
+    private long cachedPixels;
+
+    // Returns the decoded baseline image, from the cache if the file did not
+    // change since it was decoded.
+    private Baseline getBaseline(String fileName) throws IOException {
+        File file = RegionCapturer.getFile("seleniumjavarobot.baseline.dir", fileName).getCanonicalFile();
+        long lastModified = file.lastModified();
+        synchronized (this) {
+            Baseline baseline = baselines.get(file);
+            if (baseline != null && baseline.lastModified == lastModified) {
+                return baseline;
+            }
+        }
+        if (!file.isFile()) {
+            throw new IllegalArgumentException("Baseline not found: " + fileName);
+        }
+        BufferedImage image = ImageIO.read(file);
+        if (image == null) {
+            throw new IllegalArgumentException("Unsupported baseline image format: " + fileName);
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        Baseline baseline = new Baseline(lastModified, width, height, image.getRGB(0, 0, width, height, null, 0, width));
+        synchronized (this) {
+            Baseline previous = baselines.put(file, baseline);
+            if (previous != null) {
+                cachedPixels -= previous.pixels.length;
+            }
+            cachedPixels += baseline.pixels.length;
+            Iterator<Baseline> iterator = baselines.values().iterator();
+            while (cachedPixels > MAX_CACHED_PIXELS && iterator.hasNext()) {
+                Baseline eldest = iterator.next();
+                if (eldest != baseline) {
+                    cachedPixels -= eldest.pixels.length;
+                    iterator.remove();
+                }
+            }
+        }
+        return baseline;
+    }
+
+    // Compares the given region of the screen with the baseline. diffFileName
+    // can be null not to write the diff image (in the directory configured
+    // with seleniumjavarobot.capture.dir).
+    public Map<String, Object> compare(IRobot robot, Rectangle screenRect, String baselineName, int tolerance, boolean ignoreAntialiasing,
+            String diffFileName) throws IOException, InterruptedException {
+        RegionCapturer.checkRegion(screenRect);
+        File diffFile = diffFileName != null ? RegionCapturer.getFile("seleniumjavarobot.capture.dir", diffFileName) : null;
+        Baseline baseline = getBaseline(baselineName);
+        int width = screenRect.width;
+        int height = screenRect.height;
+        if (baseline.width != width || baseline.height != height) {
+            throw new IllegalArgumentException("The size of the baseline (" + baseline.width + "x" + baseline.height
+                    + ") is not the size of the region (" + width + "x" + height + ")");
+        }
+        BufferedImage capture = robot.createScreenCapture(screenRect);
+        BufferPool bufferPool = BufferPool.INSTANCE;
+        int[] pixels = bufferPool.getIntBuffer(width * height);
+        try {
+            capture.getRGB(0, 0, width, height, pixels, 0, width);
+            int[] diff = diffFile != null ? new int[width * height] : null;
+            int[] counts = compare(pixels, baseline.pixels, width, height, tolerance, ignoreAntialiasing, diff);
+            Map<String, Object> result = new HashMap<String, Object>();
+            result.put("differentPixels", counts[0]);
+            result.put("antialiasedPixels", counts[1]);
+            result.put("mismatchRatio", (double) counts[0] / (width * height));
+            if (diff != null) {
+                BufferedImage diffImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                diffImage.setRGB(0, 0, width, height, diff, 0, width);
+                ImageIO.write(diffImage, "png", diffFile);
+                result.put("diffFile", diffFile.getAbsolutePath());
+            }
+            return result;
+        } finally {
+            bufferPool.release(pixels);
+        }
+    }
+
+    // Compares two images given as arrays of RGB pixels, row by row (both
+    // arrays can be bigger than width x height), and returns the number of
+    // different pixels and the number of anti-aliased pixels (not included in
+    // the different pixels if ignoreAntialiasing is true). diff can be null,
+    // otherwise it receives the diff image.
+    public static int[] compare(final int[] image1, final int[] image2, final int width, final int height, final int tolerance,
+            final boolean ignoreAntialiasing, final int[] diff) throws InterruptedException {
+        int tasksCount = Math.min(height, ImageThreads.COUNT * 4);
+        List<Future<int[]>> futures = new ArrayList<Future<int[]>>();
+        try {
+            for (int task = 0; task < tasksCount; task++) {
+                final int startY = height * task / tasksCount;
+                final int endY = height * (task + 1) / tasksCount;
+                futures.add(ImageThreads.POOL.submit(new Callable<int[]>() {
+                    public int[] call() {
+                        return compareRows(image1, image2, width, height, startY, endY, tolerance, ignoreAntialiasing, diff);
+                    }
+                }));
+            }
+            int[] result = new int[2];
+            for (Future<int[]> future : futures) {
+                int[] counts = future.get();
+                result[0] += counts[0];
+                result[1] += counts[1];
+            }
+            return result;
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            for (Future<int[]> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private static int[] compareRows(int[] image1, int[] image2, int width, int height, int startY, int endY, int tolerance,
+            boolean ignoreAntialiasing, int[] diff) {
+        int different = 0;
+        int antialiased = 0;
+        for (int y = startY; y < endY; y++) {
+            for (int x = 0, i = y * width; x < width; x++, i++) {
+                int pixel1 = image1[i];
+                int pixel2 = image2[i];
+                int color;
+                if (isSimilar(pixel1, pixel2, tolerance)) {
+                    // unchanged pixels are drawn faded in the diff image
+                    int gray = 255 - (255 - getBrightness(pixel2) / 1000) / 10;
+                    color = (gray << 16) | (gray << 8) | gray;
+                } else if (isAntialiased(image1, image2, width, height, x, y) || isAntialiased(image2, image1, width, height, x, y)) {
+                    antialiased++;
+                    if (!ignoreAntialiasing) {
+                        different++;
+                    }
+                    color = ANTIALIASED_COLOR;
+                } else {
+                    different++;
+                    color = DIFFERENT_COLOR;
+                }
+                if (diff != null) {
+                    diff[i] = color;
+                }
+            }
+        }
+        return new int[] { different, antialiased };
+    }
+
+    private static boolean isSimilar(int pixel1, int pixel2, int tolerance) {
+        return Math.abs(((pixel1 >> 16) & 0xff) - ((pixel2 >> 16) & 0xff)) <= tolerance
+                && Math.abs(((pixel1 >> 8) & 0xff) - ((pixel2 >> 8) & 0xff)) <= tolerance
+                && Math.abs((pixel1 & 0xff) - (pixel2 & 0xff)) <= tolerance;
+    }
+
+    // Brightness (luma) of the pixel, from 0 to 255000.
+    private static int getBrightness(int pixel) {
+        return 299 * ((pixel >> 16) & 0xff) + 587 * ((pixel >> 8) & 0xff) + 114 * (pixel & 0xff);
+    }
+
+    // Checks if the pixel of image looks like anti-aliasing: at most 2 of its
+    // neighbours are identical to it, it has both a darker and a brighter
+    // neighbour, and the darkest or the brightest neighbour has more than 2
+    // identical neighbours in both images.
+    private static boolean isAntialiased(int[] image, int[] otherImage, int width, int height, int x, int y) {
+        int pixel = image[y * width + x];
+        int brightness = getBrightness(pixel);
+        // pixels on the border are considered to have one identical neighbour
+        int identical = x == 0 || y == 0 || x == width - 1 || y == height - 1 ? 1 : 0;
+        int minDelta = 0;
+        int maxDelta = 0;
+        int minX = 0, minY = 0, maxX = 0, maxY = 0;
+        for (int neighbourY = Math.max(y - 1, 0), endY = Math.min(y + 1, height - 1); neighbourY <= endY; neighbourY++) {
+            for (int neighbourX = Math.max(x - 1, 0), endX = Math.min(x + 1, width - 1); neighbourX <= endX; neighbourX++) {
+                if (neighbourX == x && neighbourY == y) {
+                    continue;
+                }
+                int neighbour = image[neighbourY * width + neighbourX];
+                if (neighbour == pixel) {
+                    identical++;
+                    if (identical > 2) {
+                        return false;
+                    }
+                    continue;
+                }
+                int delta = getBrightness(neighbour) - brightness;
+                if (delta < minDelta) {
+                    minDelta = delta;
+                    minX = neighbourX;
+                    minY = neighbourY;
+                } else if (delta > maxDelta) {
+                    maxDelta = delta;
+                    maxX = neighbourX;
+                    maxY = neighbourY;
+                }
+            }
+        }
+        if (minDelta == 0 || maxDelta == 0) {
+            return false;
+        }
+        return (hasManySiblings(image, width, height, minX, minY) && hasManySiblings(otherImage, width, height, minX, minY))
+                || (hasManySiblings(image, width, height, maxX, maxY) && hasManySiblings(otherImage, width, height, maxX, maxY));
+    }
+
+    // Checks if more than 2 neighbours of the pixel are identical to it.
+    private static boolean hasManySiblings(int[] image, int width, int height, int x, int y) {
+        int pixel = image[y * width + x];
+        int identical = x == 0 || y == 0 || x == width - 1 || y == height - 1 ? 1 : 0;
+        for (int neighbourY = Math.max(y - 1, 0), endY = Math.min(y + 1, height - 1); neighbourY <= endY; neighbourY++) {
+            for (int neighbourX = Math.max(x - 1, 0), endX = Math.min(x + 1, width - 1); neighbourX <= endX; neighbourX++) {
+                if ((neighbourX != x || neighbourY != y) && image[neighbourY * width + neighbourX] == pixel) {
+                    identical++;
+                    if (identical > 2) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+}
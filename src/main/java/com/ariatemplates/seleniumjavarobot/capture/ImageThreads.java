@@ -0,0 +1,32 @@
+/*
+ * Copyright 2014 Amadeus s.a.s.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ariatemplates.seleniumjavarobot.capture;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+// Threads (one per processor) shared by the image processing done in
+// parallel (such as ImageFinder and ImageComparator).
+public class ImageThreads {
+    public static final int COUNT = Runtime.getRuntime().availableProcessors();
+    public static final ExecutorService POOL = Executors.newFixedThreadPool(COUNT, new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ImageThreads");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+}
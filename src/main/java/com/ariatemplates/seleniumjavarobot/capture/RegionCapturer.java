@@ -0,0 +1,218 @@
+/*
+ * Copyright 2014 Amadeus s.a.s.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ariatemplates.seleniumjavarobot.capture;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.codec.binary.Base64OutputStream;
+import org.apache.commons.io.IOUtils;
+
+import com.ariatemplates.seleniumjavarobot.IRobot;
+
+// Captures regions of the screen for the captureRegion method of the page
+// (see Executor), in one of the following formats:
+// - png: the region as a PNG image,
+// - raw: the RGB values of the pixels (3 bytes per pixel), row by row,
+// - delta: the RGB values of the tiles (of TILE_SIZE x TILE_SIZE pixels)
+// which changed since the previous capture of the same region of the viewport
+// which was delivered to the page (all the tiles for the first capture), each
+// tile row by row, with the list of tiles.
+// The data is returned in base64, or written to a file of the directory
+// configured with the seleniumjavarobot.capture.dir system property.
+public class RegionCapturer {
+    public static final int TILE_SIZE = 32;
+    public static final String FORMAT_PNG = "png";
+    public static final String FORMAT_RAW = "raw";
+    public static final String FORMAT_DELTA = "delta";
+    // Biggest region which can be captured (in pixels):
+    private static final int MAX_PIXELS = Integer.getInteger("seleniumjavarobot.capture.maxpixels", 3840 * 2160);
+    // Number of regions whose tile hashes are kept for the delta format:
+    private static final int MAX_DELTA_REGIONS = 16;
+
+    private final BufferPool bufferPool = BufferPool.INSTANCE;
+    // Tile hashes of the last delivered delta capture of each region of the
+    // viewport (the least recently used regions are forgotten first):
+    private final Map<Rectangle, long[]> previousHashes = new LinkedHashMap<Rectangle, long[]>(MAX_DELTA_REGIONS, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Rectangle, long[]> eldest) {
+            return size() > MAX_DELTA_REGIONS;
+        }
+    };
+    // Region and tile hashes of the delta capture of the current call, which
+    // only replace the previous ones once its result is delivered (see
+    // endCall):
+    private Rectangle pendingRegion;
+    private long[] pendingHashes;
+
+    public static void checkRegion(Rectangle screenRect) {
+        if (screenRect.width <= 0 || screenRect.height <= 0) {
+            throw new IllegalArgumentException("Region width and height must be > 0");
+        }
+        if ((long) screenRect.width * screenRect.height > MAX_PIXELS) {
+            throw new IllegalArgumentException("Region too big (more than " + MAX_PIXELS + " pixels)");
+        }
+    }
+
+    // viewportRegion is the captured region relative to the viewport, which
+    // identifies it for the delta format (it does not change when the window
+    // moves). fileName can be null to return the data instead of writing it
+    // to a file.
+    public synchronized Map<String, Object> capture(IRobot robot, Rectangle screenRect, Rectangle viewportRegion, String format, String fileName)
+            throws IOException {
+        checkRegion(screenRect);
+        if (format == null) {
+            format = FORMAT_PNG;
+        }
+        if (!FORMAT_PNG.equals(format) && !FORMAT_RAW.equals(format) && !FORMAT_DELTA.equals(format)) {
+            throw new IllegalArgumentException("Unknown capture format: " + format);
+        }
+        File file = fileName != null ? getFile("seleniumjavarobot.capture.dir", fileName) : null;
+        BufferedImage image = robot.createScreenCapture(screenRect);
+        int width = image.getWidth();
+        int height = image.getHeight();
+        Map<String, Object> result = new HashMap<String, Object>();
+        result.put("format", format);
+        result.put("width", width);
+        result.put("height", height);
+        if (FORMAT_PNG.equals(format)) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            ImageIO.write(image, "png", output);
+            byte[] data = output.toByteArray();
+            storeData(result, file, data, data.length);
+            return result;
+        }
+        int[] pixels = bufferPool.getIntBuffer(width * height);
+        byte[] data = bufferPool.getByteBuffer(width * height * 3);
+        try {
+            image.getRGB(0, 0, width, height, pixels, 0, width);
+            int length;
+            if (FORMAT_RAW.equals(format)) {
+                length = copyRGB(pixels, width, new Rectangle(0, 0, width, height), data, 0);
+            } else {
+                length = copyChangedTiles(pixels, width, height, viewportRegion, data, result);
+            }
+            storeData(result, file, data, length);
+        } finally {
+            bufferPool.release(pixels);
+            bufferPool.release(data);
+        }
+        return result;
+    }
+
+    // Must be called at the end of each call of the page: if the result of
+    // the call was delivered to the page, the delta capture of the call (if
+    // any) becomes the base of the next delta capture of its region.
+    // Otherwise, the page did not receive the changed tiles, and the next
+    // delta capture is still based on the previous one.
+    public synchronized void endCall(boolean delivered) {
+        if (delivered && pendingRegion != null) {
+            previousHashes.put(pendingRegion, pendingHashes);
+        }
+        pendingRegion = null;
+        pendingHashes = null;
+    }
+
+    private int copyChangedTiles(int[] pixels, int width, int height, Rectangle viewportRegion, byte[] data, Map<String, Object> result) {
+        Rectangle key = new Rectangle(viewportRegion);
+        long[] oldHashes = previousHashes.get(key);
+        long[] hashes = TileHasher.hashTiles(pixels, width, height, TILE_SIZE, null);
+        pendingRegion = key;
+        pendingHashes = hashes;
+        int columns = TileHasher.getColumns(width, TILE_SIZE);
+        List<Map<String, Integer>> tiles = new ArrayList<Map<String, Integer>>();
+        int length = 0;
+        for (int i = 0; i < hashes.length; i++) {
+            if (oldHashes != null && oldHashes[i] == hashes[i]) {
+                continue;
+            }
+            int x = (i % columns) * TILE_SIZE;
+            int y = (i / columns) * TILE_SIZE;
+            Rectangle tile = new Rectangle(x, y, Math.min(TILE_SIZE, width - x), Math.min(TILE_SIZE, height - y));
+            length = copyRGB(pixels, width, tile, data, length);
+            Map<String, Integer> tileInfo = new HashMap<String, Integer>();
+            tileInfo.put("x", tile.x);
+            tileInfo.put("y", tile.y);
+            tileInfo.put("width", tile.width);
+            tileInfo.put("height", tile.height);
+            tiles.add(tileInfo);
+        }
+        result.put("tileSize", TILE_SIZE);
+        result.put("tiles", tiles);
+        return length;
+    }
+
+    // Copies the RGB values of the given part of the image in data, from
+    // offset, and returns the offset after them.
+    private static int copyRGB(int[] pixels, int width, Rectangle part, byte[] data, int offset) {
+        for (int y = part.y, maxY = part.y + part.height; y < maxY; y++) {
+            for (int i = y * width + part.x, end = i + part.width; i < end; i++) {
+                int pixel = pixels[i];
+                data[offset] = (byte) (pixel >> 16);
+                data[offset + 1] = (byte) (pixel >> 8);
+                data[offset + 2] = (byte) pixel;
+                offset += 3;
+            }
+        }
+        return offset;
+    }
+
+    private static void storeData(Map<String, Object> result, File file, byte[] data, int length) throws IOException {
+        if (file == null) {
+            // encoded directly from the pooled buffer (without chunks)
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream((length + 2) / 3 * 4);
+            Base64OutputStream output = new Base64OutputStream(encoded, true, 0, null);
+            output.write(data, 0, length);
+            output.close();
+            result.put("data", encoded.toString("US-ASCII"));
+            return;
+        }
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(data, 0, length);
+        } finally {
+            IOUtils.closeQuietly(output);
+        }
+        result.put("file", file.getAbsolutePath());
+    }
+
+    // Only simple file names are accepted, so that the page cannot access
+    // files anywhere else than in the directory configured with the given
+    // system property.
+    static File getFile(String directoryProperty, String fileName) throws IOException {
+        String directory = System.getProperty(directoryProperty);
+        if (directory == null) {
+            throw new IllegalArgumentException("Access to files is disabled (" + directoryProperty + " is not set).");
+        }
+        File file = new File(directory, fileName);
+        if (fileName.length() == 0 || !file.getCanonicalFile().getParentFile().equals(new File(directory).getCanonicalFile())) {
+            throw new IllegalArgumentException("Invalid file name: " + fileName);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2014 Amadeus s.a.s.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ariatemplates.seleniumjavarobot.capture;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.ariatemplates.seleniumjavarobot.ICallState;
+import com.ariatemplates.seleniumjavarobot.IRobot;
+
+// Watches a region of the screen until it changes or until it stays unchanged
+// for some time, by comparing the tile hashes (see TileHasher) of successive
+// captures. The buffers are reused between captures.
+public class ScreenWatcher {
+    public static final int TILE_SIZE = 16;
+    // Minimum time between two captures:
+    private static final int POLL_INTERVAL = 10;
+
+    private final IRobot robot;
+    private final Rectangle screenRect;
+    private final BufferPool bufferPool = BufferPool.INSTANCE;
+    private long[] hashes;
+    private long[] previousHashes;
+
+    public ScreenWatcher(IRobot robot, Rectangle screenRect) {
+        RegionCapturer.checkRegion(screenRect);
+        this.robot = robot;
+        this.screenRect = screenRect;
+    }
+
+    // Waits until the region stays unchanged for stableTime ms, or until
+    // timeout ms have elapsed (or the call is abandoned, if callState is not
+    // null). The result contains stable (false in case of timeout) and time
+    // (time elapsed until the last change, in ms).
+    public Map<String, Object> waitForStable(int stableTime, int timeout, ICallState callState) throws InterruptedException {
+        long startTime = System.currentTimeMillis();
+        long endTime = startTime + timeout;
+        capture();
+        long lastChangeTime = startTime;
+        while (true) {
+            long now = System.currentTimeMillis();
+            if (now - lastChangeTime >= stableTime) {
+                return createResult("stable", true, lastChangeTime - startTime);
+            }
+            if (now >= endTime || (callState != null && callState.isAbandoned())) {
+                return createResult("stable", false, lastChangeTime - startTime);
+            }
+            Thread.sleep(Math.min(POLL_INTERVAL, endTime - now));
+            if (capture() != null) {
+                lastChangeTime = System.currentTimeMillis();
+            }
+        }
+    }
+
+    // Waits until the region changes, or until timeout ms have elapsed (or the
+    // call is abandoned, if callState is not null). The result contains
+    // changed, time (in ms) and, if changed is true, region (the part of the
+    // watched region which changed, relative to it, rounded to the tiles).
+    public Map<String, Object> waitForChange(int timeout, ICallState callState) throws InterruptedException {
+        long startTime = System.currentTimeMillis();
+        long endTime = startTime + timeout;
+        capture();
+        while (true) {
+            long now = System.currentTimeMillis();
+            if (now >= endTime || (callState != null && callState.isAbandoned())) {
+                return createResult("changed", false, now - startTime);
+            }
+            Thread.sleep(Math.min(POLL_INTERVAL, endTime - now));
+            Rectangle changedRegion = capture();
+            if (changedRegion != null) {
+                Map<String, Object> result = createResult("changed", true, System.currentTimeMillis() - startTime);
+                Map<String, Integer> region = new HashMap<String, Integer>();
+                region.put("x", changedRegion.x);
+                region.put("y", changedRegion.y);
+                region.put("width", changedRegion.width);
+                region.put("height", changedRegion.height);
+                result.put("region", region);
+                return result;
+            }
+        }
+    }
+
+    private static Map<String, Object> createResult(String flagName, boolean flag, long time) {
+        Map<String, Object> result = new HashMap<String, Object>();
+        result.put(flagName, flag);
+        result.put("time", time);
+        return result;
+    }
+
+    // Captures the region, and returns the bounds of the tiles which changed
+    // since the previous capture (null if nothing changed or for the first
+    // capture).
+    private Rectangle capture() {
+        BufferedImage image = robot.createScreenCapture(screenRect);
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = bufferPool.getIntBuffer(width * height);
+        try {
+            image.getRGB(0, 0, width, height, pixels, 0, width);
+            long[] oldHashes = hashes;
+            hashes = TileHasher.hashTiles(pixels, width, height, TILE_SIZE, previousHashes);
+            previousHashes = oldHashes;
+        } finally {
+            bufferPool.release(pixels);
+        }
+        if (previousHashes == null) {
+            return null;
+        }
+        int columns = TileHasher.getColumns(width, TILE_SIZE);
+        Rectangle result = null;
+        for (int i = 0, l = TileHasher.getTilesCount(width, height, TILE_SIZE); i < l; i++) {
+            if (hashes[i] != previousHashes[i]) {
+                int x = (i % columns) * TILE_SIZE;
+                int y = (i / columns) * TILE_SIZE;
+                Rectangle tile = new Rectangle(x, y, Math.min(TILE_SIZE, width - x), Math.min(TILE_SIZE, height - y));
+                result = result == null ? tile : result.union(tile);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2014 Amadeus s.a.s.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ariatemplates.seleniumjavarobot.capture;
+
+// Computes one hash per square tile of an image (given as an array of RGB
+// pixels, row by row), to find quickly which parts of a region changed
+// between two captures. The hash is FNV-1a on the pixels of the tile.
+public class TileHasher {
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    // Hash of the first length pixels of the array.
+    public static long hash(int[] pixels, int length) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < length; i++) {
+            hash = (hash ^ (pixels[i] & 0xffffff)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    public static int getColumns(int width, int tileSize) {
+        return (width + tileSize - 1) / tileSize;
+    }
+
+    public static int getTilesCount(int width, int height, int tileSize) {
+        return getColumns(width, tileSize) * getColumns(height, tileSize);
+    }
+
+    // Fills hashes (which is reused if it is big enough, and returned) with
+    // the hashes of the tiles, row by row. Tiles on the right and bottom
+    // edges can be smaller than tileSize.
+    public static long[] hashTiles(int[] pixels, int width, int height, int tileSize, long[] hashes) {
+        int columns = getColumns(width, tileSize);
+        int tilesCount = getTilesCount(width, height, tileSize);
+        if (hashes == null || hashes.length < tilesCount) {
+            hashes = new long[tilesCount];
+        }
+        for (int i = 0; i < tilesCount; i++) {
+            hashes[i] = FNV_OFFSET_BASIS;
+        }
+        for (int y = 0; y < height; y++) {
+            int tileIndex = (y / tileSize) * columns;
+            int rowStart = y * width;
+            for (int tileX = 0; tileX < width; tileX += tileSize, tileIndex++) {
+                long hash = hashes[tileIndex];
+                int end = rowStart + Math.min(tileX + tileSize, width);
+                for (int i = rowStart + tileX; i < end; i++) {
+                    hash = (hash ^ (pixels[i] & 0xffffff)) * FNV_PRIME;
+                }
+                hashes[tileIndex] = hash;
+            }
+        }
+        return hashes;
+    }
+}
@@ -15,14 +15,26 @@
 
 package com.ariatemplates.seleniumjavarobot.executor;
 
+import java.awt.Rectangle;
+import java.awt.event.InputEvent;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import javax.imageio.ImageIO;
+
+import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.io.IOUtils;
+import org.openqa.selenium.Dimension;
 import org.openqa.selenium.NoSuchWindowException;
 import org.openqa.selenium.Point;
 import org.openqa.selenium.TimeoutException;
@@ -30,10 +42,20 @@ import org.openqa.selenium.UnhandledAlertException;
 import org.openqa.selenium.WebDriverException;
 import org.openqa.selenium.remote.UnreachableBrowserException;
 
+import com.ariatemplates.seleniumjavarobot.ArbitratedRobot;
 import com.ariatemplates.seleniumjavarobot.IBrowser;
+import com.ariatemplates.seleniumjavarobot.ICallState;
 import com.ariatemplates.seleniumjavarobot.IRobot;
+import com.ariatemplates.seleniumjavarobot.Metrics;
 import com.ariatemplates.seleniumjavarobot.RobotizedBrowser;
 import com.ariatemplates.seleniumjavarobot.SeleniumJavaRobot;
+import com.ariatemplates.seleniumjavarobot.SyntheticRobot;
+import com.ariatemplates.seleniumjavarobot.calibrator.Calibrator;
+import com.ariatemplates.seleniumjavarobot.calibrator.ImageFinder;
+import com.ariatemplates.seleniumjavarobot.capture.FlightRecorder;
+import com.ariatemplates.seleniumjavarobot.capture.ImageComparator;
+import com.ariatemplates.seleniumjavarobot.capture.RegionCapturer;
+import com.ariatemplates.seleniumjavarobot.capture.ScreenWatcher;
 
 public class Executor {
     private static final String EXECUTOR_SCRIPT;
@@ -53,6 +75,42 @@ public class Executor {
         return ((Number) value).intValue();
     }
 
+    // Page flags of the mouse buttons (the values of the deprecated
+    // InputEvent.BUTTON*_MASK constants, see README) and the corresponding
+    // masks given to robots:
+    private static final int[] PAGE_BUTTON_FLAGS = { 16, 8, 4 };
+    private static final int[] ROBOT_BUTTON_MASKS = { InputEvent.BUTTON1_DOWN_MASK, InputEvent.BUTTON2_DOWN_MASK, InputEvent.BUTTON3_DOWN_MASK };
+
+    private static int toButtons(Object value) {
+        int flags = toInt(value);
+        int result = 0;
+        for (int i = 0; i < PAGE_BUTTON_FLAGS.length; i++) {
+            if ((flags & PAGE_BUTTON_FLAGS[i]) != 0) {
+                flags &= ~PAGE_BUTTON_FLAGS[i];
+                result |= ROBOT_BUTTON_MASKS[i];
+            }
+        }
+        // the other flags are kept as they are, so that robots reject them
+        return result | flags;
+    }
+
+    private static final String EXPIRED_CALL = "Call expired";
+    private static final String CANCELLED_CALL = "Call cancelled";
+    // Minimum time between two checks of the cancellation of the current call
+    // in the page (see isCallAbandoned):
+    private static final long CANCEL_CHECK_INTERVAL = 100;
+    private static final String IS_CANCELLED_SCRIPT = "var robot = window.SeleniumJavaRobot; "
+            + "return !!(robot && robot.__isCancelled && robot.__isCancelled(arguments[0]));";
+    private static final String VERIFY_OFFSET_METHOD = "__verifyOffset";
+    // Distance (in addition to the change of the browser interface) around
+    // the expected position of the marker in which it is looked for:
+    private static final int MARKER_SEARCH_MARGIN = 64;
+    private static final long MIN_RETRY_DELAY = 10;
+    private static final long MAX_RETRY_DELAY = 1000;
+    // With the HTTP channel, time without calls after which the executor
+    // script is injected again if the page changed:
+    private static final long CHANNEL_PAGE_CHECK_INTERVAL = 1000;
+
     private static final Map<String, Method> methods;
     static {
         methods = new HashMap<String, Executor.Method>();
@@ -72,14 +130,15 @@ public class Executor {
                 int toX = toInt(arguments.get(2));
                 int toY = toInt(arguments.get(3));
                 int duration = toInt(arguments.get(4));
-                SmoothMouseMove.smoothMouseMove(executor.robot, fromX, fromY, toX, toY, duration);
+                SmoothMouseMove.smoothMouseMove(executor.robot, fromX, fromY, toX, toY, duration, executor.syntheticRobot == null,
+                        executor.callState);
                 return null;
             }
         });
 
         methods.put("mousePress", new Method() {
             public Object run(Executor executor, List<Object> arguments) {
-                int buttons = toInt(arguments.get(0));
+                int buttons = toButtons(arguments.get(0));
                 executor.robot.mousePress(buttons);
                 return null;
             }
@@ -87,7 +146,7 @@ public class Executor {
 
         methods.put("mouseRelease", new Method() {
             public Object run(Executor executor, List<Object> arguments) {
-                int buttons = toInt(arguments.get(0));
+                int buttons = toButtons(arguments.get(0));
                 executor.robot.mouseRelease(buttons);
                 return null;
             }
@@ -119,19 +178,135 @@ public class Executor {
 
         methods.put("getOffset", new Method() {
             public Object run(Executor executor, List<Object> arguments) {
-                Point point = executor.driver.getWindowPosition();
+                Point point = executor.getScreenOffset();
+                Map<String, Number> map = new HashMap<String, Number>();
+                map.put("x", point.x);
+                map.put("y", point.y);
+                return map;
+            }
+        });
+
+        methods.put("captureRegion", new Method() {
+            public Object run(Executor executor, List<Object> arguments) {
+                Rectangle region = executor.getScreenRegion(arguments);
+                @SuppressWarnings("unchecked")
+                Map<String, Object> options = arguments.size() > 4 ? (Map<String, Object>) arguments.get(4) : null;
+                String format = options != null ? (String) options.get("format") : null;
+                String file = options != null ? (String) options.get("file") : null;
+                try {
+                    return executor.regionCapturer.capture(executor.robot, region, getViewportRegion(arguments), format, file);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+
+        methods.put("findImage", new Method() {
+            public Object run(Executor executor, List<Object> arguments) throws InterruptedException {
+                BufferedImage template = decodeImage((String) arguments.get(4));
+                int tolerance = toInt(arguments.get(5));
+                Point screenOffset = executor.getScreenOffset();
+                Rectangle match = ImageFinder.findImage(executor.robot, executor.getScreenRegion(arguments), template, tolerance);
+                if (match == null) {
+                    return null;
+                }
+                // relative to the viewport
                 Map<String, Number> map = new HashMap<String, Number>();
-                map.put("x", executor.offset.x + point.x);
-                map.put("y", executor.offset.y + point.y);
+                map.put("x", match.x - screenOffset.x);
+                map.put("y", match.y - screenOffset.y);
+                map.put("width", match.width);
+                map.put("height", match.height);
                 return map;
             }
         });
 
+        methods.put("compareRegion", new Method() {
+            public Object run(Executor executor, List<Object> arguments) throws InterruptedException {
+                Rectangle region = executor.getScreenRegion(arguments);
+                String baseline = (String) arguments.get(4);
+                @SuppressWarnings("unchecked")
+                Map<String, Object> options = arguments.size() > 5 ? (Map<String, Object>) arguments.get(5) : null;
+                if (options == null) {
+                    options = new HashMap<String, Object>();
+                }
+                int tolerance = options.get("tolerance") != null ? toInt(options.get("tolerance")) : 0;
+                boolean ignoreAntialiasing = !Boolean.FALSE.equals(options.get("ignoreAntialiasing"));
+                try {
+                    return ImageComparator.INSTANCE.compare(executor.robot, region, baseline, tolerance, ignoreAntialiasing,
+                            (String) options.get("diffFile"));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+
+        // Called by the page (with a marker displayed at the given position)
+        // when the response of a call asks to verify the offset:
+        methods.put(VERIFY_OFFSET_METHOD, new Method() {
+            public Object run(Executor executor, List<Object> arguments) throws InterruptedException {
+                int size = toInt(arguments.get(2));
+                executor.verifyOffset(new Rectangle(toInt(arguments.get(0)), toInt(arguments.get(1)), size, size));
+                return null;
+            }
+        });
+
+        methods.put("dumpRecording", new Method() {
+            public Object run(Executor executor, List<Object> arguments) {
+                if (executor.flightRecorder == null) {
+                    throw new IllegalStateException("The flight recorder is not enabled.");
+                }
+                String reason = arguments.size() > 0 ? (String) arguments.get(0) : null;
+                return executor.flightRecorder.dump(reason != null ? reason : "page");
+            }
+        });
+
+        methods.put("waitForScreenStable", new Method() {
+            public Object run(Executor executor, List<Object> arguments) throws InterruptedException {
+                int stableTime = toInt(arguments.get(4));
+                int timeout = executor.limitTimeout(toInt(arguments.get(5)));
+                return new ScreenWatcher(executor.robot, executor.getScreenRegion(arguments)).waitForStable(stableTime, timeout, executor.callState);
+            }
+        });
+
+        methods.put("waitForPixelChange", new Method() {
+            public Object run(Executor executor, List<Object> arguments) throws InterruptedException {
+                int timeout = executor.limitTimeout(toInt(arguments.get(4)));
+                Map<String, Object> result = new ScreenWatcher(executor.robot, executor.getScreenRegion(arguments)).waitForChange(timeout, executor.callState);
+                @SuppressWarnings("unchecked")
+                Map<String, Integer> changedRegion = (Map<String, Integer>) result.get("region");
+                if (changedRegion != null) {
+                    // relative to the viewport, as the watched region
+                    changedRegion.put("x", changedRegion.get("x") + toInt(arguments.get(0)));
+                    changedRegion.put("y", changedRegion.get("y") + toInt(arguments.get(1)));
+                }
+                return result;
+            }
+        });
+
+    }
+
+    // Accepts base64 encoded images, with or without the "data:...;base64,"
+    // prefix of data URLs.
+    private static BufferedImage decodeImage(String data) {
+        int prefixEnd = data.startsWith("data:") ? data.indexOf(',') : -1;
+        try {
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(Base64.decodeBase64(data.substring(prefixEnd + 1))));
+            if (image == null) {
+                throw new IllegalArgumentException("Unsupported image format");
+            }
+            return image;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
-    private static final Map<String, String> knownExceptions;
+    // Known exceptions are recognized by the beginning of their message, with
+    // a single regular expression containing one group per exception. The
+    // corresponding message (if not null) is logged when it matches.
+    private static final Pattern knownExceptionsPattern;
+    private static final List<String> knownExceptionsMessages = new ArrayList<String>();
     static {
-        knownExceptions = new HashMap<String, String>();
+        Map<String, String> knownExceptions = new LinkedHashMap<String, String>();
 
         // Exceptions when DevTools are opened in Chrome:
         // this one (what's after "disconnected: " may vary) happens at the time
@@ -147,67 +322,302 @@ public class Executor {
         knownExceptions.put("javascript error: document unloaded", unloadingPage); // Chrome
         knownExceptions.put("Detected a page unload event", unloadingPage); // Firefox
         knownExceptions.put("Page reload detected", unloadingPage); // IE
+
+        StringBuilder regexp = new StringBuilder();
+        for (Entry<String, String> entry : knownExceptions.entrySet()) {
+            regexp.append(regexp.length() == 0 ? "(" : "|(").append(Pattern.quote(entry.getKey())).append(')');
+            knownExceptionsMessages.add(entry.getValue());
+        }
+        knownExceptionsPattern = Pattern.compile(regexp.toString());
     }
 
     private static final boolean handleException(WebDriverException exception) {
         String message = exception.getMessage();
-        for (Entry<String, String> entry : knownExceptions.entrySet()) {
-            if (message.startsWith(entry.getKey())) {
-                String replacementMessage = entry.getValue();
+        Matcher matcher = knownExceptionsPattern.matcher(message != null ? message : "");
+        if (!matcher.lookingAt()) {
+            return false;
+        }
+        for (int i = 1; i <= matcher.groupCount(); i++) {
+            if (matcher.group(i) != null) {
+                String replacementMessage = knownExceptionsMessages.get(i - 1);
                 if (replacementMessage != null) {
                     SeleniumJavaRobot.log(replacementMessage);
                 }
-                return true;
+                break;
             }
         }
-        return false;
+        return true;
+    }
+
+    // Delay before trying again after the given number of consecutive known
+    // exceptions: the first retry is immediate (the executor script waits
+    // for the new page to be ready), then the delay grows exponentially.
+    private static long getRetryDelay(int failures) {
+        if (failures <= 1) {
+            return 0;
+        }
+        return Math.min(MAX_RETRY_DELAY, MIN_RETRY_DELAY << Math.min(failures - 2, 16));
     }
 
     private final RobotizedBrowser robotizedBrowser;
     private final IRobot robot;
+    // Not null if the events have to be dispatched inside the page:
+    private final SyntheticRobot syntheticRobot;
+    private final ArbitratedRobot arbitratedRobot;
     private final IBrowser driver;
+    private final WindowPositionTracker windowPositionTracker;
+    private final Metrics metrics;
+    private final RegionCapturer regionCapturer = new RegionCapturer();
+    // Not null if the flight recorder is enabled (see FlightRecorder):
+    private volatile FlightRecorder flightRecorder;
     private Point offset;
+    // Screen coordinates of the window, as reported by the page with the last
+    // call:
+    private Point pageScreenPosition;
+    // Size of the browser interface around the viewport (difference between
+    // the outer and inner sizes of the window) when the offset was last
+    // verified (null if it was not verified yet), and as reported by the
+    // page with the current call:
+    private Dimension viewportChrome;
+    private Dimension reportedViewportChrome;
+    // Time at which the current call expires (0 if it has no deadline):
+    private long callDeadline;
+    // Id of the current call, whether the page cancelled it, and time of the
+    // next check:
+    private Object callId;
+    private boolean callCancelled;
+    private long nextCancelCheck;
+    private final ICallState callState = new ICallState() {
+        public boolean isAbandoned() {
+            return isCallAbandoned();
+        }
+    };
 
-    public Executor(RobotizedBrowser robotizedBrowser, Point offset) {
+    public Executor(RobotizedBrowser robotizedBrowser, Point offset, Metrics metrics) {
         this.robotizedBrowser = robotizedBrowser;
+        this.metrics = metrics;
         this.robot = robotizedBrowser.robot;
+        this.syntheticRobot = robot instanceof SyntheticRobot ? (SyntheticRobot) robot : null;
+        this.arbitratedRobot = robot instanceof ArbitratedRobot ? (ArbitratedRobot) robot : null;
         this.driver = robotizedBrowser.browser;
+        this.windowPositionTracker = new WindowPositionTracker(driver);
         this.offset = offset;
     }
 
+    // Screen coordinates of the top left corner of the viewport.
+    private Point getScreenOffset() {
+        if (syntheticRobot != null) {
+            // synthetic events use the coordinates of the viewport
+            return new Point(0, 0);
+        }
+        Point point = windowPositionTracker.getWindowPosition(pageScreenPosition);
+        return new Point(offset.x + point.x, offset.y + point.y);
+    }
+
+    // Returns the region given by the first 4 arguments (x, y, width and
+    // height, relative to the viewport).
+    private static Rectangle getViewportRegion(List<Object> arguments) {
+        return new Rectangle(toInt(arguments.get(0)), toInt(arguments.get(1)), toInt(arguments.get(2)), toInt(arguments.get(3)));
+    }
+
+    // Converts the region given by the first 4 arguments (x, y, width and
+    // height, relative to the viewport) to screen coordinates.
+    private Rectangle getScreenRegion(List<Object> arguments) {
+        Rectangle region = getViewportRegion(arguments);
+        Point screenOffset = getScreenOffset();
+        region.translate(screenOffset.x, screenOffset.y);
+        return region;
+    }
+
+    // Makes sure a timeout does not go beyond the deadline of the current
+    // call.
+    private int limitTimeout(int timeout) {
+        if (callDeadline == 0) {
+            return timeout;
+        }
+        return (int) Math.max(0, Math.min(timeout, callDeadline - System.currentTimeMillis()));
+    }
+
+    // Returns true if the current call expired, or if the page cancelled it.
+    // The page is asked (at most every CANCEL_CHECK_INTERVAL ms) from this
+    // thread, as it is the one using the browser.
+    private boolean isCallAbandoned() {
+        long now = System.currentTimeMillis();
+        if (callDeadline != 0 && now >= callDeadline) {
+            return true;
+        }
+        if (!callCancelled && callId != null && now >= nextCancelCheck) {
+            nextCancelCheck = now + CANCEL_CHECK_INTERVAL;
+            try {
+                callCancelled = Boolean.TRUE.equals(driver.executeScript(IS_CANCELLED_SCRIPT, callId));
+            } catch (WebDriverException e) {
+                // the page (which was waiting for the call) is gone
+                callCancelled = true;
+            }
+        }
+        return callCancelled;
+    }
+
+    // Finds the marker displayed by the page at the given position (relative
+    // to the viewport) and updates the offset if the marker is not where it is
+    // expected. Restarting the browser is the last resort if it is not found.
+    private void verifyOffset(Rectangle marker) throws InterruptedException {
+        Point screenOffset = getScreenOffset();
+        Rectangle expectedMarker = new Rectangle(marker);
+        expectedMarker.translate(screenOffset.x, screenOffset.y);
+        int margin = MARKER_SEARCH_MARGIN;
+        if (viewportChrome != null && reportedViewportChrome != null) {
+            margin += Math.abs(reportedViewportChrome.width - viewportChrome.width) + Math.abs(reportedViewportChrome.height - viewportChrome.height);
+        }
+        Point markerPosition = Calibrator.findMarker(robot, expectedMarker, margin);
+        if (markerPosition == null) {
+            SeleniumJavaRobot.log("The offset could not be verified, stopping the browser.");
+            dumpRecording("offset-lost");
+            robotizedBrowser.stop();
+            throw new RuntimeException("The offset could not be verified.");
+        }
+        Point newOffset = new Point(offset.x + markerPosition.x - expectedMarker.x, offset.y + markerPosition.y - expectedMarker.y);
+        if (!newOffset.equals(offset)) {
+            SeleniumJavaRobot.log("Corrected offset: " + newOffset);
+            offset = newOffset;
+            metrics.offsetCorrections.incrementAndGet();
+        }
+        viewportChrome = reportedViewportChrome;
+    }
+
+    private void updateRecordedRegion() {
+        Point position = windowPositionTracker.getWindowPosition(pageScreenPosition);
+        Dimension windowSize = windowPositionTracker.getWindowSize();
+        flightRecorder.setRegion(new Rectangle(position.x, position.y, windowSize.width, windowSize.height));
+    }
+
+    private void dumpRecording(String reason) {
+        if (flightRecorder != null) {
+            flightRecorder.dump(reason);
+        }
+    }
+
     public void run() throws InterruptedException {
+        if (syntheticRobot == null) {
+            // the recorder has its own robot if possible, so that its
+            // captures do not wait for input events (and do not delay them)
+            IRobot recorderRobot = robotizedBrowser.recorderRobot;
+            flightRecorder = FlightRecorder.createIfEnabled(recorderRobot != null ? recorderRobot : robot);
+        }
+        try {
+            if (flightRecorder != null) {
+                windowPositionTracker.enableSizeTracking();
+                updateRecordedRegion();
+                SeleniumJavaRobot.log("The flight recorder is enabled.");
+            }
+            runWithTransport();
+        } finally {
+            if (flightRecorder != null) {
+                flightRecorder.close();
+            }
+        }
+    }
+
+    private void runWithTransport() throws InterruptedException {
+        HttpChannel httpChannel = null;
+        if ("http".equalsIgnoreCase(System.getProperty("seleniumjavarobot.transport"))) {
+            try {
+                httpChannel = new HttpChannel(Integer.getInteger("seleniumjavarobot.transport.port", 0));
+                SeleniumJavaRobot.log("Robot calls are received on " + httpChannel.getUrl());
+            } catch (IOException e) {
+                SeleniumJavaRobot.log("Could not start the HTTP channel, falling back to WebDriver: " + e);
+            }
+        }
+        try {
+            run(httpChannel);
+        } finally {
+            if (httpChannel != null) {
+                httpChannel.close();
+            }
+        }
+    }
+
+    private void run(HttpChannel httpChannel) throws InterruptedException {
         driver.setScriptTimeout(1, TimeUnit.SECONDS);
+        // When the HTTP channel is used, the page sends its calls directly to
+        // it, they are executed by this thread (as the other calls, so that
+        // the browser and the state of the executor are only used by this
+        // thread), and the executor script returns immediately: it is only
+        // called when there is no call, to make sure it is injected in each
+        // new page.
+        Map<String, Object> channelInfo = httpChannel != null ? httpChannel.getPageInfo() : null;
         boolean expectsStatus = true;
+        boolean idle = false;
+        // number of consecutive known exceptions:
+        int failures = 0;
+        // time at which the page was unloaded (0 if the executor script is
+        // injected in the current page):
+        long detachTime = 0;
         while (true) {
             try {
                 if (robotizedBrowser.isStopped()) {
                     return;
                 }
+                if (httpChannel != null && !expectsStatus) {
+                    HttpChannel.PendingCall pendingCall = httpChannel.takeCall(CHANNEL_PAGE_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+                    if (pendingCall != null) {
+                        executeChannelCall(pendingCall);
+                        continue;
+                    }
+                    idle = true;
+                }
+                if (idle) {
+                    idle = false;
+                    if (syntheticRobot == null) {
+                        windowPositionTracker.refreshIfIdleTooLong();
+                    }
+                }
                 @SuppressWarnings("unchecked")
-                Map<String, Object> curCall = (Map<String, Object>) driver.executeAsyncScript(EXECUTOR_SCRIPT, expectsStatus);
+                Map<String, Object> curCall = (Map<String, Object>) driver.executeAsyncScript(EXECUTOR_SCRIPT, expectsStatus, channelInfo);
+                failures = 0;
                 if (expectsStatus) {
                     expectsStatus = false;
-                    SeleniumJavaRobot.log("The Selenium Java Robot is now enabled in the current page.");
+                    if (detachTime != 0) {
+                        long reattachTime = System.currentTimeMillis() - detachTime;
+                        detachTime = 0;
+                        metrics.addReattachment(reattachTime);
+                        SeleniumJavaRobot.log(String.format("The Selenium Java Robot is now enabled in the current page (after %d ms).", reattachTime));
+                    } else {
+                        SeleniumJavaRobot.log("The Selenium Java Robot is now enabled in the current page.");
+                    }
                 }
-                if (curCall != null) {
+                if (curCall != null && Boolean.TRUE.equals(curCall.get("unloading"))) {
+                    // announced by the page, the script is injected in the
+                    // next one as soon as it is ready
+                    detachTime = System.currentTimeMillis();
+                    expectsStatus = true;
+                } else if (curCall != null) {
                     executeCall(curCall);
                 }
             } catch (TimeoutException e) {
+                idle = true;
                 continue;
             } catch (UnhandledAlertException e) {
                 SeleniumJavaRobot.log("Alert in the page: " + e.getAlertText());
                 continue;
             } catch (UnreachableBrowserException e) {
                 SeleniumJavaRobot.log("The browser exited.");
+                dumpRecording("browser-exit");
                 return;
             } catch (NoSuchWindowException e) {
                 SeleniumJavaRobot.log("The browser window was closed.");
+                dumpRecording("window-closed");
                 return;
             } catch (WebDriverException e) {
+                if (detachTime == 0) {
+                    detachTime = System.currentTimeMillis();
+                }
                 if (handleException(e)) {
-                    Thread.sleep(100);
+                    failures++;
+                    Thread.sleep(getRetryDelay(failures));
                 } else {
                     System.err.println(e);
+                    dumpRecording("exception");
                     if (expectsStatus) {
                         return;
                     }
@@ -216,32 +626,152 @@ public class Executor {
                 continue;
             } catch (RuntimeException e) {
                 System.err.println(e);
+                dumpRecording("exception");
                 return;
             }
         }
     }
 
     private void executeCall(Map<String, Object> curCall) throws InterruptedException {
+        boolean delivered = false;
         try {
-            String curEventName = (String) curCall.get("name");
-            String id = (String) curCall.get("id");
-            @SuppressWarnings("unchecked")
-            List<Object> args = (List<Object>) curCall.get("args");
-            Method curMethod = methods.get(curEventName);
+            Map<String, Object> response = invokeCall(curCall);
+            // __callback returns true if the result was given to the caller
+            delivered = Boolean.TRUE.equals(driver.executeScript(
+                    "try { return window.SeleniumJavaRobot.__callback(arguments[0], arguments[1], arguments[2], arguments[3], arguments[4], "
+                            + "arguments[5]); } catch(e){ return false; }", curCall.get("id"), response.get("success"), response.get("result"),
+                    response.get("events"), response.get("expired"), response.get("verifyOffset")))
+                    && Boolean.TRUE.equals(response.get("success"));
+        } catch (RuntimeException e) {
+            System.err.println(e);
+        } finally {
+            regionCapturer.endCall(delivered);
+        }
+    }
+
+    private void executeChannelCall(HttpChannel.PendingCall pendingCall) throws InterruptedException {
+        Map<String, Object> response;
+        try {
+            response = invokeCall(pendingCall.call);
+        } catch (RuntimeException e) {
+            System.err.println(e);
+            response = new HashMap<String, Object>();
+            response.put("success", false);
+            response.put("result", e.toString());
+        }
+        boolean delivered = false;
+        try {
+            delivered = pendingCall.respond(response) && Boolean.TRUE.equals(response.get("success"));
+        } finally {
+            regionCapturer.endCall(delivered);
+        }
+    }
+
+    private Map<String, Object> invokeCall(Map<String, Object> curCall) throws InterruptedException {
+        String curEventName = (String) curCall.get("name");
+        @SuppressWarnings("unchecked")
+        List<Object> args = (List<Object>) curCall.get("args");
+        Method curMethod = methods.get(curEventName);
+        @SuppressWarnings("unchecked")
+        Map<String, Object> screen = (Map<String, Object>) curCall.get("screen");
+        pageScreenPosition = screen != null ? new Point(toInt(screen.get("x")), toInt(screen.get("y"))) : null;
+        // calls which expired in the page before being sent:
+        Object expiredCalls = curCall.get("expiredCalls");
+        if (expiredCalls != null) {
+            metrics.addExpiredCalls(toInt(expiredCalls));
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Object> viewport = (Map<String, Object>) curCall.get("viewport");
+        reportedViewportChrome = viewport != null ? new Dimension(toInt(viewport.get("outerWidth")) - toInt(viewport.get("innerWidth")),
+                toInt(viewport.get("outerHeight")) - toInt(viewport.get("innerHeight"))) : null;
+        if (syntheticRobot == null && reportedViewportChrome != null && !reportedViewportChrome.equals(viewportChrome)
+                && !VERIFY_OFFSET_METHOD.equals(curEventName)) {
+            // The viewport may have moved inside the window (for example
+            // because an infobar appeared): the page displays a marker and
+            // calls __verifyOffset before sending this call again. This is
+            // also done once for the first call, as the browser interface
+            // may have changed since the calibration.
+            SeleniumJavaRobot.log(String.format("Verifying the offset (browser interface: %s, previously: %s).", reportedViewportChrome,
+                    viewportChrome));
+            Map<String, Object> response = new HashMap<String, Object>();
+            response.put("success", false);
+            response.put("result", "The offset has to be verified.");
+            response.put("verifyOffset", true);
+            return response;
+        }
+        // remaining time (in ms) before the deadline given by the page:
+        Object timeout = curCall.get("timeout");
+        long startTime = System.currentTimeMillis();
+        callDeadline = timeout != null ? startTime + toInt(timeout) : 0;
+        callId = curCall.get("id");
+        callCancelled = false;
+        nextCancelCheck = startTime + CANCEL_CHECK_INTERVAL;
+        Object result;
+        boolean success = false;
+        boolean expired = false;
+        if (timeout != null && toInt(timeout) <= 0) {
+            // stale input must not be replayed
+            SeleniumJavaRobot.log(String.format("Skipping expired call %s (%s)", curEventName, args));
+            result = EXPIRED_CALL;
+            expired = true;
+        } else {
             SeleniumJavaRobot.log(String.format("Executing %s (%s)", curEventName, args));
-            Object result;
-            boolean success = false;
+            if (arbitratedRobot != null) {
+                // the events of the call are not mixed with the ones of other
+                // browsers
+                arbitratedRobot.beginCall();
+            }
             try {
-                result = curMethod.run(this, args);
+                try {
+                    result = curMethod.run(this, args);
+                } finally {
+                    // the call is only finished when its events are executed
+                    // (including the ones sent before an error)
+                    robot.sync();
+                }
                 success = true;
             } catch (RuntimeException e) {
                 result = e.toString();
+            } finally {
+                if (arbitratedRobot != null) {
+                    arbitratedRobot.endCall();
+                }
             }
-            synchronized (robotizedBrowser) {
-                driver.executeScript("try { window.SeleniumJavaRobot.__callback(arguments[0], arguments[1], arguments[2]); } catch(e){}", id, success, result);
+            if (callCancelled) {
+                // the page stopped waiting for the result
+                SeleniumJavaRobot.log(String.format("The call %s was cancelled while it was executed.", curEventName));
+                result = CANCELLED_CALL;
+                success = false;
+            } else if (callDeadline != 0 && System.currentTimeMillis() > callDeadline) {
+                // the page stopped waiting for the result
+                SeleniumJavaRobot.log(String.format("The call %s expired while it was executed.", curEventName));
+                result = EXPIRED_CALL;
+                success = false;
+                expired = true;
             }
-        } catch (RuntimeException e) {
-            System.err.println(e);
+            metrics.addCall(System.currentTimeMillis() - startTime, success);
+        }
+        callDeadline = 0;
+        callId = null;
+        if (expired) {
+            metrics.addExpiredCalls(1);
+        }
+        FlightRecorder flightRecorder = this.flightRecorder;
+        if (flightRecorder != null) {
+            flightRecorder.recordCall(String.format("%s (%s): %s", curEventName, args, success ? "OK" : result));
+            updateRecordedRegion();
+        }
+        Map<String, Object> response = new HashMap<String, Object>();
+        response.put("success", success);
+        response.put("result", result);
+        if (expired) {
+            response.put("expired", true);
+        }
+        if (syntheticRobot != null) {
+            // dispatched by the page before calling the callback (even if the
+            // call failed, for the events queued before the failure)
+            response.put("events", syntheticRobot.takeEvents());
         }
+        return response;
     }
 }
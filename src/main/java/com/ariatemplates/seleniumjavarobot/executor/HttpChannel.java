@@ -0,0 +1,175 @@
+/*
+ * Copyright 2014 Amadeus s.a.s.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ariatemplates.seleniumjavarobot.executor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.openqa.selenium.remote.BeanToJsonConverter;
+import org.openqa.selenium.remote.JsonToBeanConverter;
+
+import com.ariatemplates.seleniumjavarobot.LogTarget;
+import com.ariatemplates.seleniumjavarobot.SeleniumJavaRobot;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+// Small local HTTP server to which the page sends its robot calls directly,
+// without going through WebDriver. Each call is a POST request whose response
+// is the result of the call. Calls are executed one at a time, in the order in
+// which they are received, by the thread of the executor (see takeCall), which
+// is the only one using the browser and the state of the executor.
+public class HttpChannel {
+    // Maximum time (in ms) to wait for a response to be sent to the page:
+    private static final long SEND_TIMEOUT = 30000;
+
+    // Call received by the server, waiting for its response:
+    static class PendingCall {
+        final Map<String, Object> call;
+        private final CountDownLatch answered = new CountDownLatch(1);
+        private final CountDownLatch sent = new CountDownLatch(1);
+        private volatile Map<String, Object> response;
+        private volatile boolean delivered = false;
+
+        PendingCall(Map<String, Object> call) {
+            this.call = call;
+        }
+
+        // Gives the response of the call to the server, and returns true
+        // once it is sent to the page, or false if it could not be sent.
+        boolean respond(Map<String, Object> response) throws InterruptedException {
+            this.response = response;
+            answered.countDown();
+            return sent.await(SEND_TIMEOUT, TimeUnit.MILLISECONDS) && delivered;
+        }
+
+        private Map<String, Object> waitForResponse() throws InterruptedException {
+            answered.await();
+            return response;
+        }
+
+        private void setSent(boolean delivered) {
+            this.delivered = delivered;
+            sent.countDown();
+        }
+    }
+
+    private final BlockingQueue<PendingCall> pendingCalls = new LinkedBlockingQueue<PendingCall>();
+    private final HttpServer server;
+    private final ExecutorService callsExecutor;
+    // Random token given to the page through WebDriver, so that other pages
+    // cannot use the robot:
+    private final String token;
+
+    public HttpChannel(int port) throws IOException {
+        this.token = Long.toHexString(new SecureRandom().nextLong());
+        final LogTarget logTarget = SeleniumJavaRobot.getLogTarget();
+        this.callsExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(SeleniumJavaRobot.withLogTarget(logTarget, r), "selenium-java-robot-http-channel");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    handleRequest(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(callsExecutor);
+        server.start();
+    }
+
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    // Returns the next call received from the page, or null if there is none
+    // in the given time. The response must be given with respond.
+    PendingCall takeCall(long timeout, TimeUnit unit) throws InterruptedException {
+        return pendingCalls.poll(timeout, unit);
+    }
+
+    public Map<String, Object> getPageInfo() {
+        Map<String, Object> res = new HashMap<String, Object>();
+        res.put("url", getUrl());
+        res.put("token", token);
+        return res;
+    }
+
+    private void handleRequest(HttpExchange exchange) throws IOException {
+        Headers responseHeaders = exchange.getResponseHeaders();
+        responseHeaders.set("Access-Control-Allow-Origin", "*");
+        if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Object> request = new JsonToBeanConverter().convert(Map.class, IOUtils.toString(exchange.getRequestBody(), "UTF-8"));
+        if (!token.equals(request.get("token"))) {
+            exchange.sendResponseHeaders(403, -1);
+            return;
+        }
+        @SuppressWarnings("unchecked")
+        PendingCall pendingCall = new PendingCall((Map<String, Object>) request.get("call"));
+        boolean delivered = false;
+        try {
+            Map<String, Object> response;
+            try {
+                pendingCalls.put(pendingCall);
+                response = pendingCall.waitForResponse();
+            } catch (InterruptedException e) {
+                // the channel is closed
+                pendingCalls.remove(pendingCall);
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+            byte[] body = new BeanToJsonConverter().convert(response).getBytes("UTF-8");
+            responseHeaders.set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream output = exchange.getResponseBody();
+            output.write(body);
+            output.close();
+            delivered = true;
+        } finally {
+            pendingCall.setSent(delivered);
+        }
+    }
+
+    public void close() {
+        server.stop(0);
+        callsExecutor.shutdownNow();
+    }
+}
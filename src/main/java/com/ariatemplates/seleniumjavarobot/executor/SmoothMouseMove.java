@@ -15,17 +15,50 @@
 
 package com.ariatemplates.seleniumjavarobot.executor;
 
+import com.ariatemplates.seleniumjavarobot.ICallState;
 import com.ariatemplates.seleniumjavarobot.IRobot;
 
 public class SmoothMouseMove {
+    private static final int STEP_DURATION = 50;
+
     public static void smoothMouseMove(IRobot robot, int fromX, int fromY, int toX, int toY, int duration) throws InterruptedException {
+        smoothMouseMove(robot, fromX, fromY, toX, toY, duration, true);
+    }
+
+    // When realTime is false, the same intermediate positions are generated,
+    // but without waiting between them (for robots whose events are only
+    // executed at the end of the call, such as SyntheticRobot).
+    public static void smoothMouseMove(IRobot robot, int fromX, int fromY, int toX, int toY, int duration, boolean realTime)
+            throws InterruptedException {
+        smoothMouseMove(robot, fromX, fromY, toX, toY, duration, realTime, null);
+    }
+
+    // If callState is not null, the move is stopped where it is when the call
+    // is abandoned.
+    public static void smoothMouseMove(IRobot robot, int fromX, int fromY, int toX, int toY, int duration, boolean realTime,
+            ICallState callState) throws InterruptedException {
+        if (!realTime) {
+            robot.mouseMove(fromX, fromY);
+            int steps = duration / STEP_DURATION;
+            for (int i = 1; i < steps; i++) {
+                double progress = (double) i / steps;
+                robot.mouseMove((int) ((1 - progress) * fromX + progress * toX), (int) ((1 - progress) * fromY + progress * toY));
+            }
+            robot.mouseMove(toX, toY);
+            return;
+        }
         robot.mouseMove(fromX, fromY);
         double currentTime = System.currentTimeMillis();
         double endTime = currentTime + duration;
         while (currentTime < endTime) {
+            if (callState != null && callState.isAbandoned()) {
+                return;
+            }
             double howCloseToEnd = (endTime - currentTime) / duration;
             robot.mouseMove((int) (howCloseToEnd * fromX + (1 - howCloseToEnd) * toX), (int) (howCloseToEnd * fromY + (1 - howCloseToEnd) * toY));
-            Thread.sleep(50);
+            // some robots only send their events when they are synchronized
+            robot.sync();
+            Thread.sleep(STEP_DURATION);
             currentTime = System.currentTimeMillis();
         }
         robot.mouseMove(toX, toY);
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2014 Amadeus s.a.s.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ariatemplates.seleniumjavarobot.executor;
+
+import org.openqa.selenium.Dimension;
+import org.openqa.selenium.Point;
+
+import com.ariatemplates.seleniumjavarobot.IBrowser;
+
+// Keeps the position of the browser window in memory, so that it is not
+// necessary to ask WebDriver for it each time it is needed. The position is
+// refreshed when the screen coordinates reported by the page change, and at a
+// low rate when the executor is idle. The size of the window can also be
+// tracked (it is then refreshed at the same time).
+public class WindowPositionTracker {
+    private static final long IDLE_REFRESH_INTERVAL = 5000;
+
+    private final IBrowser browser;
+    private Point windowPosition;
+    private boolean trackSize;
+    private Dimension windowSize;
+    // Screen coordinates reported by the page when windowPosition was
+    // retrieved:
+    private Point pageScreenPosition;
+    private long lastRefresh;
+
+    public WindowPositionTracker(IBrowser browser) {
+        this.browser = browser;
+    }
+
+    public synchronized void enableSizeTracking() {
+        if (!trackSize) {
+            trackSize = true;
+            // the size is retrieved with the next position
+            windowPosition = null;
+        }
+    }
+
+    public synchronized Point getWindowPosition(Point reportedPageScreenPosition) {
+        if (windowPosition == null || reportedPageScreenPosition == null || !reportedPageScreenPosition.equals(pageScreenPosition)) {
+            refresh();
+            pageScreenPosition = reportedPageScreenPosition;
+        }
+        return windowPosition;
+    }
+
+    // Returns the size retrieved with the last position (null if the size is
+    // not tracked or if the position was never retrieved).
+    public synchronized Dimension getWindowSize() {
+        return windowSize;
+    }
+
+    public synchronized void refreshIfIdleTooLong() {
+        if (windowPosition != null && System.currentTimeMillis() - lastRefresh > IDLE_REFRESH_INTERVAL) {
+            refresh();
+        }
+    }
+
+    private void refresh() {
+        windowPosition = browser.getWindowPosition();
+        if (trackSize) {
+            windowSize = browser.getWindowSize();
+        }
+        lastRefresh = System.currentTimeMillis();
+    }
+}
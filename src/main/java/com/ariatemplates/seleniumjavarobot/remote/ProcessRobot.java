@@ -0,0 +1,68 @@
+/*
+ * Copyright 2014 Amadeus s.a.s.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ariatemplates.seleniumjavarobot.remote;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.IOUtils;
+
+// Robot for another X display than the one of the current process. It starts
+// a child process (RobotAgent) with the DISPLAY environment variable set, and
+// sends it the robot commands through its standard input and output.
+public class ProcessRobot extends StreamRobot {
+    private final Process process;
+
+    public ProcessRobot(String display) {
+        this(startAgent(display));
+    }
+
+    private ProcessRobot(Process process) {
+        super(process.getInputStream(), process.getOutputStream());
+        this.process = process;
+        forwardErrors(process.getErrorStream());
+    }
+
+    private static Process startAgent(String display) {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder processBuilder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), RobotAgent.class.getName());
+        processBuilder.environment().put("DISPLAY", display);
+        try {
+            return processBuilder.start();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void forwardErrors(final InputStream errorStream) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    IOUtils.copy(errorStream, System.err);
+                } catch (IOException e) {
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void close() {
+        closeStreams();
+        process.destroy();
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014 Amadeus s.a.s.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ariatemplates.seleniumjavarobot.remote;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+// Robot of another machine (or display), on which RobotAgent is listening on a
+// TCP port. The token given to the agent (with --token-file) is sent first.
+public class RemoteRobot extends StreamRobot {
+    private final Socket socket;
+
+    public RemoteRobot(String host, int port, String token) {
+        this(connect(host, port, token));
+    }
+
+    // Accepts "host:port".
+    public static RemoteRobot fromAddress(String address, String token) {
+        int separator = address.lastIndexOf(':');
+        if (separator < 0) {
+            throw new IllegalArgumentException("Expected host:port instead of " + address);
+        }
+        return new RemoteRobot(address.substring(0, separator), Integer.parseInt(address.substring(separator + 1)), token);
+    }
+
+    private RemoteRobot(Socket socket) {
+        super(getInputStream(socket), getOutputStream(socket));
+        this.socket = socket;
+    }
+
+    private static Socket connect(String host, int port, String token) {
+        Socket socket = null;
+        try {
+            socket = new Socket(host, port);
+            // events are sent one by one without waiting for a reply
+            socket.setTcpNoDelay(true);
+            DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+            output.writeUTF(token);
+            output.flush();
+            DataInputStream input = new DataInputStream(socket.getInputStream());
+            if (input.readByte() != RobotProtocol.STATUS_OK) {
+                throw new IOException("The robot agent refused the connection: " + input.readUTF());
+            }
+            return socket;
+        } catch (IOException e) {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e2) {
+                }
+            }
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static InputStream getInputStream(Socket socket) {
+        try {
+            return socket.getInputStream();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static OutputStream getOutputStream(Socket socket) {
+        try {
+            return socket.getOutputStream();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        closeStreams();
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2014 Amadeus s.a.s.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ariatemplates.seleniumjavarobot.remote;
+
+import java.awt.AWTException;
+import java.awt.Rectangle;
+import java.awt.Robot;
+import java.awt.Toolkit;
+import java.awt.event.KeyEvent;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.zip.Deflater;
+
+import com.ariatemplates.seleniumjavarobot.PrivateFiles;
+
+// Executes the robot commands it receives (see RobotProtocol) with
+// java.awt.Robot, on the display of its process.
+//
+// Without arguments, the commands are read from the standard input (this is
+// how ProcessRobot uses it). With --port <port> --token-file <file>
+// [--bind <address>], the agent listens on a TCP port (on 127.0.0.1 by default)
+// for RemoteRobot clients, which must send the token contained in the file (a
+// random token is written in it, only readable by the current user, if it does
+// not exist).
+public class RobotAgent {
+    // Maximum time for a client to send its token:
+    private static final int AUTHENTICATION_TIMEOUT = 10000;
+
+    private final Robot robot;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    // Buffers kept between screen captures:
+    private byte[] rgbBuffer = new byte[0];
+    private byte[] compressedBuffer = new byte[0];
+
+    public RobotAgent(Robot robot) {
+        this.robot = robot;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = -1;
+        String bindAddress = "127.0.0.1";
+        File tokenFile = null;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if ("--port".equalsIgnoreCase(args[i])) {
+                port = Integer.parseInt(args[i + 1]);
+            } else if ("--bind".equalsIgnoreCase(args[i])) {
+                bindAddress = args[i + 1];
+            } else if ("--token-file".equalsIgnoreCase(args[i])) {
+                tokenFile = new File(args[i + 1]);
+            }
+        }
+        if (port >= 0 && tokenFile == null) {
+            throw new IllegalArgumentException("--token-file is required with --port.");
+        }
+        OutputStream standardOutput = new FileOutputStream(FileDescriptor.out);
+        // the standard output is reserved for the protocol
+        System.setOut(System.err);
+        Robot robot;
+        try {
+            robot = new Robot();
+        } catch (AWTException e) {
+            throw new RuntimeException(e);
+        }
+        try {
+            // cf LocalRobotizedBrowserFactory.numLockStateWorkaround
+            Toolkit.getDefaultToolkit().setLockingKeyState(KeyEvent.VK_NUM_LOCK, false);
+        } catch (UnsupportedOperationException e) {
+        }
+        if (port < 0) {
+            new RobotAgent(robot).serve(new FileInputStream(FileDescriptor.in), standardOutput);
+            return;
+        }
+        String token;
+        if (tokenFile.isFile()) {
+            token = PrivateFiles.readToken(tokenFile);
+        } else {
+            token = PrivateFiles.createToken(tokenFile);
+            System.err.println("Robot agent token written in " + tokenFile);
+        }
+        ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getByName(bindAddress));
+        System.err.println("Robot agent listening on " + serverSocket.getLocalSocketAddress());
+        while (true) {
+            Socket socket = serverSocket.accept();
+            // each client (such as the robot of the flight recorder) has its
+            // own connection, served in parallel
+            serveInThread(new RobotAgent(robot), socket, token);
+        }
+    }
+
+    private static void serveInThread(final RobotAgent agent, final Socket socket, final String token) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    socket.setTcpNoDelay(true);
+                    if (authenticate(socket, token)) {
+                        agent.serve(socket.getInputStream(), socket.getOutputStream());
+                    }
+                } catch (IOException e) {
+                    System.err.println(e);
+                } finally {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                    }
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static boolean authenticate(Socket socket, String token) throws IOException {
+        DataInputStream input = new DataInputStream(socket.getInputStream());
+        DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+        socket.setSoTimeout(AUTHENTICATION_TIMEOUT);
+        String clientToken = input.readUTF();
+        socket.setSoTimeout(0);
+        boolean valid = MessageDigest.isEqual(token.getBytes("UTF-8"), clientToken.getBytes("UTF-8"));
+        if (valid) {
+            writeStatus(output, null);
+        } else {
+            System.err.println("Invalid token received from " + socket.getRemoteSocketAddress());
+            writeStatus(output, "Invalid token.");
+        }
+        output.flush();
+        return valid;
+    }
+
+    // Executes the commands until the end of the input stream.
+    public void serve(InputStream inputStream, OutputStream outputStream) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(inputStream));
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(outputStream));
+        // first error of an input event since the last SYNC:
+        String pendingError = null;
+        while (true) {
+            byte command;
+            try {
+                command = input.readByte();
+            } catch (EOFException e) {
+                return;
+            }
+            if (command == RobotProtocol.SYNC) {
+                writeStatus(output, pendingError);
+                pendingError = null;
+            } else if (command == RobotProtocol.SCREEN_CAPTURE) {
+                Rectangle rectangle = new Rectangle(input.readInt(), input.readInt(), input.readInt(), input.readInt());
+                BufferedImage image = null;
+                try {
+                    image = robot.createScreenCapture(rectangle);
+                } catch (RuntimeException e) {
+                    writeStatus(output, e.toString());
+                }
+                if (image != null) {
+                    writeStatus(output, null);
+                    writeImage(image, output);
+                }
+            } else {
+                try {
+                    executeInputEvent(command, input);
+                } catch (RuntimeException e) {
+                    if (pendingError == null) {
+                        pendingError = e.toString();
+                    }
+                }
+                // no reply, and no flush (the output is flushed when there is
+                // something to send)
+                continue;
+            }
+            output.flush();
+        }
+    }
+
+    private static void writeStatus(DataOutputStream output, String error) throws IOException {
+        if (error == null) {
+            output.writeByte(RobotProtocol.STATUS_OK);
+        } else {
+            output.writeByte(RobotProtocol.STATUS_ERROR);
+            output.writeUTF(error);
+        }
+    }
+
+    private void executeInputEvent(byte command, DataInputStream input) throws IOException {
+        switch (command) {
+            case RobotProtocol.MOUSE_MOVE:
+                int x = input.readInt();
+                int y = input.readInt();
+                robot.mouseMove(x, y);
+                break;
+            case RobotProtocol.MOUSE_PRESS:
+                robot.mousePress(input.readInt());
+                break;
+            case RobotProtocol.MOUSE_RELEASE:
+                robot.mouseRelease(input.readInt());
+                break;
+            case RobotProtocol.MOUSE_WHEEL:
+                robot.mouseWheel(input.readInt());
+                break;
+            case RobotProtocol.KEY_PRESS:
+                robot.keyPress(input.readInt());
+                break;
+            case RobotProtocol.KEY_RELEASE:
+                robot.keyRelease(input.readInt());
+                break;
+            default:
+                // the rest of the stream cannot be understood
+                throw new IOException("Unknown command: " + command);
+        }
+    }
+
+    private void writeImage(BufferedImage image, DataOutputStream output) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+        int length = pixels.length * 3;
+        if (rgbBuffer.length < length) {
+            rgbBuffer = new byte[length];
+            // deflate can slightly expand data which cannot be compressed
+            compressedBuffer = new byte[length + length / 1000 + 64];
+        }
+        for (int i = 0, j = 0; i < pixels.length; i++, j += 3) {
+            int pixel = pixels[i];
+            rgbBuffer[j] = (byte) (pixel >> 16);
+            rgbBuffer[j + 1] = (byte) (pixel >> 8);
+            rgbBuffer[j + 2] = (byte) pixel;
+        }
+        deflater.reset();
+        deflater.setInput(rgbBuffer, 0, length);
+        deflater.finish();
+        int compressedLength = 0;
+        while (!deflater.finished()) {
+            if (compressedLength == compressedBuffer.length) {
+                byte[] newBuffer = new byte[compressedBuffer.length * 2];
+                System.arraycopy(compressedBuffer, 0, newBuffer, 0, compressedLength);
+                compressedBuffer = newBuffer;
+            }
+            compressedLength += deflater.deflate(compressedBuffer, compressedLength, compressedBuffer.length - compressedLength);
+        }
+        output.writeInt(width);
+        output.writeInt(height);
+        output.writeInt(compressedLength);
+        output.write(compressedBuffer, 0, compressedLength);
+    }
+}
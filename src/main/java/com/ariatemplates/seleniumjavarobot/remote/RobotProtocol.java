@@ -0,0 +1,48 @@
+/*
+ * Copyright 2014 Amadeus s.a.s.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ariatemplates.seleniumjavarobot.remote;
+
+// Protocol between StreamRobot and RobotAgent.
+//
+// Over TCP (RemoteRobot), the client first sends the token of the agent (in
+// the format of writeUTF), and the agent replies with a status byte. It closes
+// the connection if the token is not the expected one.
+//
+// Each command is a byte followed by its int arguments. Input events (mouse and
+// keyboard) have no reply, so that they can be sent without waiting for the
+// previous ones to be executed. An error in an input event is kept by the agent
+// and reported by the next SYNC command.
+//
+// SYNC and SCREEN_CAPTURE reply with a status byte. STATUS_ERROR is followed by
+// the error message (in the format of writeUTF). For SCREEN_CAPTURE, STATUS_OK
+// is followed by the width and the height of the image, then by the length and
+// the content of its RGB pixels (3 bytes per pixel, row by row) compressed with
+// the deflate algorithm.
+final class RobotProtocol {
+    static final byte MOUSE_MOVE = 1;
+    static final byte MOUSE_PRESS = 2;
+    static final byte MOUSE_RELEASE = 3;
+    static final byte MOUSE_WHEEL = 4;
+    static final byte KEY_PRESS = 5;
+    static final byte KEY_RELEASE = 6;
+    static final byte SCREEN_CAPTURE = 7;
+    static final byte SYNC = 8;
+
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_ERROR = 1;
+
+    private RobotProtocol() {
+    }
+}
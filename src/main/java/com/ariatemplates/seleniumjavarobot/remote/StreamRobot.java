@@ -0,0 +1,140 @@
+/*
+ * Copyright 2014 Amadeus s.a.s.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ariatemplates.seleniumjavarobot.remote;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.ariatemplates.seleniumjavarobot.IRobot;
+
+// Robot which sends its commands to a RobotAgent (see RobotProtocol). Input
+// events are sent without waiting for them to be executed, sync waits for all
+// of them.
+public abstract class StreamRobot implements IRobot, Closeable {
+    private final DataInputStream input;
+    private final DataOutputStream output;
+    private final Inflater inflater = new Inflater();
+
+    protected StreamRobot(InputStream inputStream, OutputStream outputStream) {
+        input = new DataInputStream(new BufferedInputStream(inputStream));
+        output = new DataOutputStream(new BufferedOutputStream(outputStream));
+    }
+
+    private synchronized void send(byte command, int... arguments) {
+        try {
+            writeCommand(command, arguments);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void writeCommand(byte command, int... arguments) throws IOException {
+        output.writeByte(command);
+        for (int argument : arguments) {
+            output.writeInt(argument);
+        }
+        output.flush();
+    }
+
+    private void readStatus() throws IOException {
+        if (input.readByte() != RobotProtocol.STATUS_OK) {
+            throw new RuntimeException(input.readUTF());
+        }
+    }
+
+    public synchronized void sync() {
+        try {
+            writeCommand(RobotProtocol.SYNC);
+            readStatus();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public synchronized BufferedImage createScreenCapture(Rectangle screenRect) {
+        try {
+            writeCommand(RobotProtocol.SCREEN_CAPTURE, screenRect.x, screenRect.y, screenRect.width, screenRect.height);
+            readStatus();
+            int width = input.readInt();
+            int height = input.readInt();
+            byte[] compressed = new byte[input.readInt()];
+            input.readFully(compressed);
+            byte[] rgb = new byte[width * height * 3];
+            inflater.reset();
+            inflater.setInput(compressed);
+            if (inflater.inflate(rgb) != rgb.length) {
+                throw new IOException("Truncated screen capture.");
+            }
+            int[] pixels = new int[width * height];
+            for (int i = 0, j = 0; i < pixels.length; i++, j += 3) {
+                pixels[i] = (rgb[j] & 0xff) << 16 | (rgb[j + 1] & 0xff) << 8 | (rgb[j + 2] & 0xff);
+            }
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            image.setRGB(0, 0, width, height, pixels, 0, width);
+            return image;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } catch (DataFormatException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void keyPress(int keycode) {
+        send(RobotProtocol.KEY_PRESS, keycode);
+    }
+
+    public void keyRelease(int keycode) {
+        send(RobotProtocol.KEY_RELEASE, keycode);
+    }
+
+    public void mouseMove(int x, int y) {
+        send(RobotProtocol.MOUSE_MOVE, x, y);
+    }
+
+    public void mousePress(int buttons) {
+        send(RobotProtocol.MOUSE_PRESS, buttons);
+    }
+
+    public void mouseRelease(int buttons) {
+        send(RobotProtocol.MOUSE_RELEASE, buttons);
+    }
+
+    public void mouseWheel(int wheelAmt) {
+        send(RobotProtocol.MOUSE_WHEEL, wheelAmt);
+    }
+
+    protected void closeStreams() {
+        try {
+            output.close();
+        } catch (IOException e) {
+        }
+        try {
+            input.close();
+        } catch (IOException e) {
+        }
+    }
+
+    public abstract void close();
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014 Amadeus s.a.s.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ariatemplates.seleniumjavarobot.xtest;
+
+import java.awt.event.KeyEvent;
+import java.util.HashMap;
+import java.util.Map;
+
+// Conversion from the Java key codes (KeyEvent.VK_*) accepted by IRobot to X
+// key symbols (cf X11/keysymdef.h).
+class KeySyms {
+    private static final Map<Integer, Integer> keySyms = new HashMap<Integer, Integer>();
+    static {
+        for (int i = KeyEvent.VK_A; i <= KeyEvent.VK_Z; i++) {
+            // lower case letters
+            keySyms.put(i, 'a' + i - KeyEvent.VK_A);
+        }
+        for (int i = KeyEvent.VK_0; i <= KeyEvent.VK_9; i++) {
+            keySyms.put(i, i);
+        }
+        for (int i = KeyEvent.VK_NUMPAD0; i <= KeyEvent.VK_NUMPAD9; i++) {
+            keySyms.put(i, 0xffb0 + i - KeyEvent.VK_NUMPAD0);
+        }
+        for (int i = KeyEvent.VK_F1; i <= KeyEvent.VK_F12; i++) {
+            keySyms.put(i, 0xffbe + i - KeyEvent.VK_F1);
+        }
+        keySyms.put(KeyEvent.VK_ENTER, 0xff0d);
+        keySyms.put(KeyEvent.VK_BACK_SPACE, 0xff08);
+        keySyms.put(KeyEvent.VK_TAB, 0xff09);
+        keySyms.put(KeyEvent.VK_ESCAPE, 0xff1b);
+        keySyms.put(KeyEvent.VK_SPACE, 0x20);
+        keySyms.put(KeyEvent.VK_SHIFT, 0xffe1);
+        keySyms.put(KeyEvent.VK_CONTROL, 0xffe3);
+        keySyms.put(KeyEvent.VK_ALT, 0xffe9);
+        keySyms.put(KeyEvent.VK_ALT_GRAPH, 0xfe03);
+        keySyms.put(KeyEvent.VK_META, 0xffe7);
+        keySyms.put(KeyEvent.VK_WINDOWS, 0xffeb);
+        keySyms.put(KeyEvent.VK_CONTEXT_MENU, 0xff67);
+        keySyms.put(KeyEvent.VK_CAPS_LOCK, 0xffe5);
+        keySyms.put(KeyEvent.VK_NUM_LOCK, 0xff7f);
+        keySyms.put(KeyEvent.VK_SCROLL_LOCK, 0xff14);
+        keySyms.put(KeyEvent.VK_PAUSE, 0xff13);
+        keySyms.put(KeyEvent.VK_PRINTSCREEN, 0xff61);
+        keySyms.put(KeyEvent.VK_INSERT, 0xff63);
+        keySyms.put(KeyEvent.VK_DELETE, 0xffff);
+        keySyms.put(KeyEvent.VK_HOME, 0xff50);
+        keySyms.put(KeyEvent.VK_END, 0xff57);
+        keySyms.put(KeyEvent.VK_PAGE_UP, 0xff55);
+        keySyms.put(KeyEvent.VK_PAGE_DOWN, 0xff56);
+        keySyms.put(KeyEvent.VK_LEFT, 0xff51);
+        keySyms.put(KeyEvent.VK_UP, 0xff52);
+        keySyms.put(KeyEvent.VK_RIGHT, 0xff53);
+        keySyms.put(KeyEvent.VK_DOWN, 0xff54);
+        keySyms.put(KeyEvent.VK_MULTIPLY, 0xffaa);
+        keySyms.put(KeyEvent.VK_ADD, 0xffab);
+        keySyms.put(KeyEvent.VK_SUBTRACT, 0xffad);
+        keySyms.put(KeyEvent.VK_DECIMAL, 0xffae);
+        keySyms.put(KeyEvent.VK_DIVIDE, 0xffaf);
+        keySyms.put(KeyEvent.VK_COMMA, 0x2c);
+        keySyms.put(KeyEvent.VK_MINUS, 0x2d);
+        keySyms.put(KeyEvent.VK_PERIOD, 0x2e);
+        keySyms.put(KeyEvent.VK_SLASH, 0x2f);
+        keySyms.put(KeyEvent.VK_SEMICOLON, 0x3b);
+        keySyms.put(KeyEvent.VK_EQUALS, 0x3d);
+        keySyms.put(KeyEvent.VK_OPEN_BRACKET, 0x5b);
+        keySyms.put(KeyEvent.VK_BACK_SLASH, 0x5c);
+        keySyms.put(KeyEvent.VK_CLOSE_BRACKET, 0x5d);
+        keySyms.put(KeyEvent.VK_BACK_QUOTE, 0x60);
+        keySyms.put(KeyEvent.VK_QUOTE, 0x27);
+    }
+
+    // Throws IllegalArgumentException (as java.awt.Robot) for unknown key
+    // codes.
+    static int fromKeyCode(int keycode) {
+        Integer keySym = keySyms.get(keycode);
+        if (keySym == null) {
+            throw new IllegalArgumentException("Invalid key code");
+        }
+        return keySym;
+    }
+}
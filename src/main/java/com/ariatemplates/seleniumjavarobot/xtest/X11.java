@@ -0,0 +1,134 @@
+/*
+ * Copyright 2014 Amadeus s.a.s.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ariatemplates.seleniumjavarobot.xtest;
+
+import com.sun.jna.Callback;
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import com.sun.jna.Structure;
+
+// Bindings of the parts of Xlib, XTest, MIT-SHM and System V shared memory
+// used by XTestRobot. Bool values are mapped to boolean (JNA passes them as
+// int).
+interface X11 extends Library {
+    X11 INSTANCE = (X11) Native.loadLibrary("X11", X11.class);
+
+    int ZPixmap = 2;
+
+    interface XErrorHandler extends Callback {
+        int callback(Pointer display, Pointer errorEvent);
+    }
+
+    Pointer XOpenDisplay(String displayName);
+
+    int XCloseDisplay(Pointer display);
+
+    int XDefaultScreen(Pointer display);
+
+    NativeLong XDefaultRootWindow(Pointer display);
+
+    Pointer XDefaultVisual(Pointer display, int screen);
+
+    int XDefaultDepth(Pointer display, int screen);
+
+    byte XKeysymToKeycode(Pointer display, NativeLong keysym);
+
+    int XSync(Pointer display, boolean discard);
+
+    int XFree(Pointer data);
+
+    Pointer XGetImage(Pointer display, NativeLong drawable, int x, int y, int width, int height, NativeLong planeMask, int format);
+
+    // Returns the previous handler.
+    Pointer XSetErrorHandler(XErrorHandler handler);
+
+    // Beginning of the XImage structure (the rest is not used):
+    class XImage extends Structure {
+        public int width;
+        public int height;
+        public int xoffset;
+        public int format;
+        public Pointer data;
+        public int byte_order;
+        public int bitmap_unit;
+        public int bitmap_bit_order;
+        public int bitmap_pad;
+        public int depth;
+        public int bytes_per_line;
+        public int bits_per_pixel;
+
+        public XImage(Pointer pointer) {
+            super(pointer);
+            setFieldOrder(new String[] { "width", "height", "xoffset", "format", "data", "byte_order", "bitmap_unit", "bitmap_bit_order",
+                    "bitmap_pad", "depth", "bytes_per_line", "bits_per_pixel" });
+            read();
+        }
+    }
+
+    interface XTest extends Library {
+        XTest INSTANCE = (XTest) Native.loadLibrary("Xtst", XTest.class);
+
+        boolean XTestQueryExtension(Pointer display, int[] eventBase, int[] errorBase, int[] majorVersion, int[] minorVersion);
+
+        int XTestFakeMotionEvent(Pointer display, int screen, int x, int y, NativeLong delay);
+
+        int XTestFakeButtonEvent(Pointer display, int button, boolean isPress, NativeLong delay);
+
+        int XTestFakeKeyEvent(Pointer display, int keycode, boolean isPress, NativeLong delay);
+    }
+
+    interface XShm extends Library {
+        XShm INSTANCE = (XShm) Native.loadLibrary("Xext", XShm.class);
+
+        class XShmSegmentInfo extends Structure {
+            public NativeLong shmseg;
+            public int shmid;
+            public Pointer shmaddr;
+            public boolean readOnly;
+
+            public XShmSegmentInfo() {
+                setFieldOrder(new String[] { "shmseg", "shmid", "shmaddr", "readOnly" });
+            }
+        }
+
+        boolean XShmQueryExtension(Pointer display);
+
+        Pointer XShmCreateImage(Pointer display, Pointer visual, int depth, int format, Pointer data, XShmSegmentInfo shminfo, int width, int height);
+
+        boolean XShmAttach(Pointer display, XShmSegmentInfo shminfo);
+
+        boolean XShmDetach(Pointer display, XShmSegmentInfo shminfo);
+
+        boolean XShmGetImage(Pointer display, NativeLong drawable, Pointer image, int x, int y, NativeLong planeMask);
+    }
+
+    interface LibC extends Library {
+        LibC INSTANCE = (LibC) Native.loadLibrary("c", LibC.class);
+
+        int IPC_PRIVATE = 0;
+        int IPC_CREAT = 01000;
+        int IPC_RMID = 0;
+
+        int shmget(int key, NativeLong size, int flags);
+
+        Pointer shmat(int shmid, Pointer address, int flags);
+
+        int shmdt(Pointer address);
+
+        int shmctl(int shmid, int command, Pointer buffer);
+    }
+}
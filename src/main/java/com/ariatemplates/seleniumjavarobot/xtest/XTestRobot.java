@@ -0,0 +1,269 @@
+/*
+ * Copyright 2014 Amadeus s.a.s.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ariatemplates.seleniumjavarobot.xtest;
+
+import java.awt.Rectangle;
+import java.awt.event.InputEvent;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.ariatemplates.seleniumjavarobot.IRobot;
+import com.ariatemplates.seleniumjavarobot.SeleniumJavaRobot;
+import com.ariatemplates.seleniumjavarobot.xtest.X11.LibC;
+import com.ariatemplates.seleniumjavarobot.xtest.X11.XImage;
+import com.ariatemplates.seleniumjavarobot.xtest.X11.XShm;
+import com.ariatemplates.seleniumjavarobot.xtest.X11.XShm.XShmSegmentInfo;
+import com.ariatemplates.seleniumjavarobot.xtest.X11.XTest;
+import com.sun.jna.Function;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+
+// Robot which uses the XTest extension directly (instead of java.awt.Robot),
+// on Linux. Events are buffered in the X connection without waiting for a reply
+// (java.awt.Robot waits for each of them), and only sync sends them and waits
+// for the X server to process them. Screen captures go through a shared memory segment (MIT-SHM)
+// which is kept between captures, and are copied directly into the returned
+// image.
+public class XTestRobot implements IRobot, Closeable {
+    private static final NativeLong NO_DELAY = new NativeLong(0);
+    private static final NativeLong ALL_PLANES = new NativeLong(-1);
+    // Masks for X buttons 1, 2 and 3:
+    private static final int[] BUTTON_MASKS = { InputEvent.BUTTON1_DOWN_MASK, InputEvent.BUTTON2_DOWN_MASK, InputEvent.BUTTON3_DOWN_MASK };
+    // Displays opened by XTestRobot instances:
+    private static final Set<Pointer> DISPLAYS = Collections.synchronizedSet(new HashSet<Pointer>());
+    // The default Xlib error handler exits the process, this one only logs
+    // the errors of the displays of XTestRobot instances (kept in a static
+    // field so that it is not garbage collected). The error handler is
+    // process-wide, so it is installed once, with the first XTestRobot, and
+    // the errors of other displays (such as the one of AWT) are given to the
+    // handler it replaced.
+    private static final X11.XErrorHandler ERROR_HANDLER = new X11.XErrorHandler() {
+        public int callback(Pointer display, Pointer errorEvent) {
+            if (!DISPLAYS.contains(display)) {
+                Pointer previous = previousErrorHandler;
+                return previous != null ? Function.getFunction(previous).invokeInt(new Object[] { display, errorEvent }) : 0;
+            }
+            // cf XErrorEvent: the error code is after the type, the display,
+            // the resource id and the serial number
+            SeleniumJavaRobot.log("X error " + (errorEvent.getByte(Pointer.SIZE * 4) & 0xff));
+            return 0;
+        }
+    };
+    private static boolean errorHandlerInstalled = false;
+    private static volatile Pointer previousErrorHandler;
+
+    private final X11 x11 = X11.INSTANCE;
+    private final XTest xtest = XTest.INSTANCE;
+    private final Pointer display;
+    private final int screen;
+    private final NativeLong rootWindow;
+    private final boolean useShm;
+    // Shared memory segment used for screen captures (null until the first
+    // capture):
+    private XShmSegmentInfo shmSegment;
+    private int shmSegmentSize;
+
+    // displayName can be null to use the DISPLAY environment variable.
+    public XTestRobot(String displayName) {
+        installErrorHandler();
+        display = x11.XOpenDisplay(displayName);
+        if (display == null) {
+            throw new RuntimeException("Cannot open display " + (displayName != null ? displayName : System.getenv("DISPLAY")));
+        }
+        DISPLAYS.add(display);
+        if (!xtest.XTestQueryExtension(display, new int[1], new int[1], new int[1], new int[1])) {
+            closeDisplay();
+            throw new RuntimeException("The XTest extension is not available.");
+        }
+        screen = x11.XDefaultScreen(display);
+        rootWindow = x11.XDefaultRootWindow(display);
+        useShm = !Boolean.getBoolean("seleniumjavarobot.xtest.noshm") && XShm.INSTANCE.XShmQueryExtension(display);
+    }
+
+    private static synchronized void installErrorHandler() {
+        if (!errorHandlerInstalled) {
+            previousErrorHandler = X11.INSTANCE.XSetErrorHandler(ERROR_HANDLER);
+            errorHandlerInstalled = true;
+        }
+    }
+
+    private void closeDisplay() {
+        x11.XCloseDisplay(display);
+        DISPLAYS.remove(display);
+    }
+
+    private void buttonEvent(int buttons, boolean press) {
+        boolean found = false;
+        // several buttons can be given at the same time
+        for (int i = 0; i < BUTTON_MASKS.length; i++) {
+            if ((buttons & BUTTON_MASKS[i]) != 0) {
+                xtest.XTestFakeButtonEvent(display, i + 1, press, NO_DELAY);
+                found = true;
+            }
+        }
+        if (!found) {
+            throw new IllegalArgumentException("Invalid combination of button flags");
+        }
+    }
+
+    private void keyEvent(int keycode, boolean press) {
+        int xKeycode = x11.XKeysymToKeycode(display, new NativeLong(KeySyms.fromKeyCode(keycode))) & 0xff;
+        if (xKeycode == 0) {
+            throw new IllegalArgumentException("Invalid key code");
+        }
+        xtest.XTestFakeKeyEvent(display, xKeycode, press, NO_DELAY);
+    }
+
+    public synchronized void keyPress(int keycode) {
+        keyEvent(keycode, true);
+    }
+
+    public synchronized void keyRelease(int keycode) {
+        keyEvent(keycode, false);
+    }
+
+    public synchronized void mouseMove(int x, int y) {
+        xtest.XTestFakeMotionEvent(display, screen, x, y, NO_DELAY);
+    }
+
+    public synchronized void mousePress(int buttons) {
+        buttonEvent(buttons, true);
+    }
+
+    public synchronized void mouseRelease(int buttons) {
+        buttonEvent(buttons, false);
+    }
+
+    public synchronized void mouseWheel(int wheelAmt) {
+        // buttons 4 and 5 are the wheel (up and down)
+        int button = wheelAmt < 0 ? 4 : 5;
+        for (int i = Math.abs(wheelAmt); i > 0; i--) {
+            xtest.XTestFakeButtonEvent(display, button, true, NO_DELAY);
+            xtest.XTestFakeButtonEvent(display, button, false, NO_DELAY);
+        }
+    }
+
+    public synchronized void sync() {
+        x11.XSync(display, false);
+    }
+
+    public synchronized BufferedImage createScreenCapture(Rectangle screenRect) {
+        if (screenRect.width <= 0 || screenRect.height <= 0) {
+            throw new IllegalArgumentException("Rectangle width and height must be > 0");
+        }
+        Pointer image = useShm ? getShmImage(screenRect) : x11.XGetImage(display, rootWindow, screenRect.x, screenRect.y, screenRect.width,
+                screenRect.height, ALL_PLANES, X11.ZPixmap);
+        if (image == null) {
+            throw new RuntimeException("Screen capture failed.");
+        }
+        XImage ximage = new XImage(image);
+        try {
+            if (ximage.bits_per_pixel != 32) {
+                throw new UnsupportedOperationException("Unsupported screen depth: " + ximage.bits_per_pixel + " bits per pixel");
+            }
+            BufferedImage result = new BufferedImage(screenRect.width, screenRect.height, BufferedImage.TYPE_INT_RGB);
+            int[] pixels = ((DataBufferInt) result.getRaster().getDataBuffer()).getData();
+            for (int y = 0; y < screenRect.height; y++) {
+                // ZPixmap with 32 bits per pixel: native order ints (the
+                // highest byte is not used)
+                ximage.data.read((long) y * ximage.bytes_per_line, pixels, y * screenRect.width, screenRect.width);
+            }
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] &= 0xffffff;
+            }
+            return result;
+        } finally {
+            if (!useShm) {
+                // the data of a shared memory image is the segment
+                x11.XFree(ximage.data);
+            }
+            x11.XFree(image);
+        }
+    }
+
+    // Creates an image in the shared memory segment (creating a bigger segment
+    // if needed) and fills it with the content of the screen.
+    private Pointer getShmImage(Rectangle screenRect) {
+        XShm xshm = XShm.INSTANCE;
+        int visualScreen = x11.XDefaultScreen(display);
+        Pointer visual = x11.XDefaultVisual(display, visualScreen);
+        int depth = x11.XDefaultDepth(display, visualScreen);
+        ensureShmSegment(screenRect.width * screenRect.height * 4);
+        Pointer image = xshm.XShmCreateImage(display, visual, depth, X11.ZPixmap, null, shmSegment, screenRect.width, screenRect.height);
+        if (image == null) {
+            return null;
+        }
+        XImage ximage = new XImage(image);
+        int size = ximage.bytes_per_line * ximage.height;
+        if (size > shmSegmentSize) {
+            // lines are padded
+            x11.XFree(image);
+            ensureShmSegment(size);
+            image = xshm.XShmCreateImage(display, visual, depth, X11.ZPixmap, null, shmSegment, screenRect.width, screenRect.height);
+            ximage = new XImage(image);
+        }
+        ximage.data = shmSegment.shmaddr;
+        ximage.writeField("data");
+        if (!xshm.XShmGetImage(display, rootWindow, image, screenRect.x, screenRect.y, ALL_PLANES)) {
+            x11.XFree(image);
+            return null;
+        }
+        return image;
+    }
+
+    private void ensureShmSegment(int size) {
+        if (shmSegment != null && shmSegmentSize >= size) {
+            return;
+        }
+        releaseShmSegment();
+        LibC libc = LibC.INSTANCE;
+        XShmSegmentInfo segment = new XShmSegmentInfo();
+        segment.shmid = libc.shmget(LibC.IPC_PRIVATE, new NativeLong(size), LibC.IPC_CREAT | 0600);
+        if (segment.shmid < 0) {
+            throw new RuntimeException("shmget failed.");
+        }
+        segment.shmaddr = libc.shmat(segment.shmid, null, 0);
+        if (Pointer.nativeValue(segment.shmaddr) == -1) {
+            libc.shmctl(segment.shmid, LibC.IPC_RMID, null);
+            throw new RuntimeException("shmat failed.");
+        }
+        segment.readOnly = false;
+        XShm.INSTANCE.XShmAttach(display, segment);
+        x11.XSync(display, false);
+        // the segment is destroyed when it is no longer attached
+        libc.shmctl(segment.shmid, LibC.IPC_RMID, null);
+        shmSegment = segment;
+        shmSegmentSize = size;
+    }
+
+    private void releaseShmSegment() {
+        if (shmSegment != null) {
+            XShm.INSTANCE.XShmDetach(display, shmSegment);
+            x11.XSync(display, false);
+            LibC.INSTANCE.shmdt(shmSegment.shmaddr);
+            shmSegment = null;
+            shmSegmentSize = 0;
+        }
+    }
+
+    public synchronized void close() {
+        releaseShmSegment();
+        closeDisplay();
+    }
+}
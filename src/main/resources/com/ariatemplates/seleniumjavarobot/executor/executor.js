@@ -14,63 +14,509 @@
  */
 
 var SeleniumJavaRobot = window.SeleniumJavaRobot;
-if (!SeleniumJavaRobot) {
+var newPage = !SeleniumJavaRobot;
+if (newPage) {
     var callIds = 0;
     var calls = [];
     var slice = calls.slice;
     var notifyJava = null;
+    // when the channel is defined, calls are sent directly to Java through HTTP
+    var channel = arguments[1];
+    var channelBusy = false;
+    // number of calls which expired before being sent to Java (reported to
+    // Java with the next call, for its metrics)
+    var expiredCalls = 0;
 
-    var notifyJavaIfNeeded = function () {
-        if (notifyJava && calls.length > 0) {
+    var sendToChannel = function (call) {
+        channelBusy = true;
+        var xhr = new XMLHttpRequest();
+        xhr.onreadystatechange = function () {
+            if (xhr.readyState != 4) {
+                return;
+            }
+            xhr.onreadystatechange = function () {};
+            channelBusy = false;
+            var response = null;
+            if (xhr.status == 200) {
+                try {
+                    response = JSON.parse(xhr.responseText);
+                } catch (e) {}
+            }
+            if (response) {
+                SeleniumJavaRobot.__callback(call.id, response.success, response.result, response.events, response.expired,
+                        response.verifyOffset);
+            } else {
+                SeleniumJavaRobot.__callback(call.id, false, "HTTP channel error: " + xhr.status);
+            }
+        };
+        xhr.open("POST", channel.url, true);
+        // text/plain avoids a CORS preflight request
+        xhr.setRequestHeader("Content-Type", "text/plain");
+        xhr.send(JSON.stringify({
+            token : channel.token,
+            call : call
+        }));
+    };
+
+    var isJavaWaiting = function () {
+        return channel ? !channelBusy : notifyJava != null;
+    };
+
+    var sendCall = function (curCall, now) {
+        var call = curCall.call;
+        curCall.sent = true;
+        // the remaining time is sent instead of the deadline, as the clocks
+        // of the browser and of Java can be different
+        call.timeout = curCall.deadline != null ? curCall.deadline - now : null;
+        call.expiredCalls = expiredCalls;
+        expiredCalls = 0;
+        // allows Java to detect when the viewport moves inside the window:
+        call.viewport = {
+            innerWidth : window.innerWidth,
+            innerHeight : window.innerHeight,
+            outerWidth : window.outerWidth,
+            outerHeight : window.outerHeight
+        };
+        if (channel) {
+            sendToChannel(call);
+        } else {
             var fn = notifyJava;
-            var arg = calls[0];
             notifyJava = null;
-            fn(arg.call);
+            fn(call);
         }
     };
 
+    var notifyJavaIfNeeded = function () {
+        var now = new Date().getTime();
+        while (isJavaWaiting() && calls.length > 0) {
+            var curCall = calls[0];
+            if (curCall.aborted) {
+                // Java asks for a new call without having answered this one
+                // (its answer was lost), which the page already gave up
+                calls.shift();
+            } else if (curCall.deadline != null && curCall.deadline <= now) {
+                try {
+                    abortCall(curCall, true);
+                } finally {
+                    notifyJavaIfNeeded();
+                }
+                return;
+            } else {
+                sendCall(curCall, now);
+            }
+        }
+    };
+
+    // Marker displayed while Java verifies the offset: a square of the
+    // calibration color (cf Calibrator) with a border, at the top left corner
+    // of the viewport.
+    var MARKER_SIZE = 12;
+    var MARKER_BORDER = 2;
+
+    var createVerifyOffsetCall = function () {
+        var marker = document.createElement("div");
+        var style = marker.style;
+        style.position = "fixed";
+        style.left = style.top = "0px";
+        style.margin = style.padding = "0px";
+        style.width = style.height = MARKER_SIZE + "px";
+        style.border = MARKER_BORDER + "px solid rgb(100,100,100)";
+        style.backgroundColor = "rgb(237,22,31)";
+        style.zIndex = 2147483647;
+        style.pointerEvents = "none";
+        (document.body || document.documentElement).appendChild(marker);
+        var curCallId = "c" + callIds;
+        callIds++;
+        return {
+            call : {
+                name : "__verifyOffset",
+                id : curCallId,
+                args : [MARKER_BORDER, MARKER_BORDER, MARKER_SIZE],
+                screen : getScreenPosition()
+            },
+            callback : function () {
+                marker.parentNode.removeChild(marker);
+            }
+        };
+    };
+
+    var callCallback = function (curCall, response) {
+        var curCallback = curCall.callback;
+        if (typeof curCallback == "function") {
+            curCallback = {
+                fn : curCallback
+            };
+        }
+        if (curCallback && typeof curCallback.fn == "function") {
+            curCallback.fn.call(curCallback.scope, response, curCallback.args);
+        }
+    };
+
+    // Calls the callback of a call which is cancelled or expired. A call
+    // which was not sent to Java yet is removed from the queue, otherwise it
+    // stays there until Java answers (the answer is then ignored, and Java
+    // stops the methods which last some time, see __isCancelled).
+    var abortCall = function (curCall, expired) {
+        curCall.aborted = true;
+        clearTimeout(curCall.timer);
+        if (!curCall.sent) {
+            for (var i = 0, l = calls.length; i < l; i++) {
+                if (calls[i] == curCall) {
+                    calls.splice(i, 1);
+                    break;
+                }
+            }
+            if (expired) {
+                expiredCalls++;
+            }
+        }
+        var response = {
+            success : false,
+            result : expired ? "Call expired" : "Call cancelled"
+        };
+        response[expired ? "expired" : "cancelled"] = true;
+        callCallback(curCall, response);
+    };
+
+    // Synthetic input (cf SyntheticRobot in Java): the events are created
+    // and dispatched here, with the coordinates of the viewport. The browser
+    // does not execute the default action of most synthetic events, so the
+    // main ones are done here: focus on mousedown, click, dblclick and
+    // contextmenu, typing and deleting text in text fields and scrolling.
+    var hoveredElement = null;
+    var pressedElements = {};
+    var lastClick = null;
+    var DBLCLICK_DELAY = 500;
+
+    var getElementAt = function (x, y) {
+        return document.elementFromPoint(x, y) || document.body || document.documentElement;
+    };
+
+    var dispatchMouseEvent = function (target, type, event, button, relatedTarget) {
+        var screenPosition = getScreenPosition();
+        var domEvent = document.createEvent("MouseEvents");
+        domEvent.initMouseEvent(type, true, true, window, type == "dblclick" ? 2 : 1, screenPosition.x + event.x, screenPosition.y + event.y,
+                event.x, event.y, event.ctrlKey, event.altKey, event.shiftKey, event.metaKey, button || 0, relatedTarget || null);
+        return target.dispatchEvent(domEvent);
+    };
+
+    var dispatchKeyEvent = function (target, type, event, keyCode, charCode) {
+        // initKeyEvent and initKeyboardEvent differ between browsers (and
+        // the latter does not allow to set keyCode), so a generic event is
+        // used
+        var domEvent = document.createEvent("Events");
+        domEvent.initEvent(type, true, true);
+        domEvent.keyCode = keyCode;
+        domEvent.charCode = charCode;
+        domEvent.which = charCode || keyCode;
+        domEvent.ctrlKey = event.ctrlKey;
+        domEvent.altKey = event.altKey;
+        domEvent.shiftKey = event.shiftKey;
+        domEvent.metaKey = event.metaKey;
+        return target.dispatchEvent(domEvent);
+    };
+
+    var focusElement = function (element) {
+        for (var curElement = element; curElement && curElement.nodeType == 1; curElement = curElement.parentNode) {
+            if (curElement.tabIndex >= 0 && !curElement.disabled && curElement.focus) {
+                curElement.focus();
+                return;
+            }
+        }
+        var activeElement = document.activeElement;
+        if (activeElement && activeElement != document.body && activeElement.blur) {
+            activeElement.blur();
+        }
+    };
+
+    var isTextField = function (element) {
+        var tagName = element.tagName;
+        return !element.readOnly && !element.disabled
+                && (tagName == "TEXTAREA" || (tagName == "INPUT" && /^(text|password|search|url|tel|email|number|)$/i.test(element.type)));
+    };
+
+    // Returns the selection of the field, or null if it is not available (it
+    // is null, or throws, with email and number fields).
+    var getFieldSelection = function (field) {
+        try {
+            if (field.selectionStart != null) {
+                return [field.selectionStart, field.selectionEnd];
+            }
+        } catch (e) {}
+        return null;
+    };
+
+    // Types the given text (or deletes text if it is null) in the field.
+    // Without selection, the caret is considered to be at the end of the
+    // value. The browser can reject the resulting value (number fields only
+    // keep valid numbers).
+    var editTextField = function (field, text, keyCode) {
+        var value = field.value;
+        var selection = getFieldSelection(field);
+        var start = selection ? selection[0] : value.length;
+        var end = selection ? selection[1] : value.length;
+        if (text != null) {
+            value = value.slice(0, start) + text + value.slice(end);
+            start += text.length;
+        } else if (start != end) {
+            value = value.slice(0, start) + value.slice(end);
+        } else if (keyCode == 8 && start > 0) {
+            start--;
+            value = value.slice(0, start) + value.slice(end);
+        } else if (keyCode == 46 && end < value.length) {
+            value = value.slice(0, start) + value.slice(end + 1);
+        } else {
+            return;
+        }
+        field.value = value;
+        if (selection) {
+            field.setSelectionRange(start, start);
+        }
+        var domEvent = document.createEvent("Events");
+        domEvent.initEvent("input", true, false);
+        field.dispatchEvent(domEvent);
+    };
+
+    var scrollElement = function (element, deltaY) {
+        var pixels = deltaY * 40;
+        for (var curElement = element; curElement && curElement.nodeType == 1; curElement = curElement.parentNode) {
+            if (curElement != document.body && curElement != document.documentElement && curElement.scrollHeight > curElement.clientHeight) {
+                var scrollTop = curElement.scrollTop;
+                curElement.scrollTop += pixels;
+                if (curElement.scrollTop != scrollTop) {
+                    return;
+                }
+            }
+        }
+        window.scrollBy(0, pixels);
+    };
+
+    var syntheticEventHandlers = {
+        mousemove : function (event) {
+            var target = getElementAt(event.x, event.y);
+            if (target != hoveredElement) {
+                if (hoveredElement) {
+                    dispatchMouseEvent(hoveredElement, "mouseout", event, 0, target);
+                }
+                dispatchMouseEvent(target, "mouseover", event, 0, hoveredElement);
+                hoveredElement = target;
+            }
+            dispatchMouseEvent(target, "mousemove", event);
+        },
+        mousedown : function (event) {
+            var target = getElementAt(event.x, event.y);
+            pressedElements[event.button] = target;
+            if (dispatchMouseEvent(target, "mousedown", event, event.button) && event.button === 0) {
+                focusElement(target);
+            }
+        },
+        mouseup : function (event) {
+            var target = getElementAt(event.x, event.y);
+            var pressedElement = pressedElements[event.button];
+            pressedElements[event.button] = null;
+            dispatchMouseEvent(target, "mouseup", event, event.button);
+            if (pressedElement != target) {
+                return;
+            }
+            if (event.button === 0) {
+                dispatchMouseEvent(target, "click", event, 0);
+                var now = new Date().getTime();
+                if (lastClick && lastClick.target == target && now - lastClick.time < DBLCLICK_DELAY) {
+                    lastClick = null;
+                    dispatchMouseEvent(target, "dblclick", event, 0);
+                } else {
+                    lastClick = {
+                        target : target,
+                        time : now
+                    };
+                }
+            } else if (event.button == 2) {
+                dispatchMouseEvent(target, "contextmenu", event, 2);
+            }
+        },
+        wheel : function (event) {
+            var target = getElementAt(event.x, event.y);
+            var domEvent = document.createEvent("Events");
+            domEvent.initEvent("wheel", true, true);
+            domEvent.deltaX = 0;
+            domEvent.deltaY = event.deltaY;
+            domEvent.deltaZ = 0;
+            // DOM_DELTA_LINE
+            domEvent.deltaMode = 1;
+            if (target.dispatchEvent(domEvent)) {
+                scrollElement(target, event.deltaY);
+            }
+        },
+        keydown : function (event) {
+            var target = document.activeElement || document.body;
+            if (!dispatchKeyEvent(target, "keydown", event, event.keyCode, 0)) {
+                return;
+            }
+            if (event.charCode) {
+                if (dispatchKeyEvent(target, "keypress", event, event.charCode, event.charCode) && isTextField(target)) {
+                    if (event.charCode != 13) {
+                        editTextField(target, String.fromCharCode(event.charCode));
+                    } else if (target.tagName == "TEXTAREA") {
+                        editTextField(target, "\n");
+                    }
+                }
+            } else if ((event.keyCode == 8 || event.keyCode == 46) && isTextField(target)) {
+                editTextField(target, null, event.keyCode);
+            }
+        },
+        keyup : function (event) {
+            dispatchKeyEvent(document.activeElement || document.body, "keyup", event, event.keyCode, 0);
+        }
+    };
+
+    var dispatchSyntheticEvents = function (events) {
+        for (var i = 0, l = events.length; i < l; i++) {
+            try {
+                syntheticEventHandlers[events[i].type](events[i]);
+            } catch (e) {}
+        }
+    };
+
+    // Calls cb once the document can be used (so that Java does not try
+    // again and again while a new page is loading).
+    var whenDocumentReady = function (cb) {
+        // (old browsers without addEventListener do not wait)
+        if (document.readyState != "loading" || !document.addEventListener) {
+            cb();
+            return;
+        }
+        var listener = function () {
+            if (document.readyState != "loading") {
+                document.removeEventListener("readystatechange", listener, false);
+                cb();
+            }
+        };
+        document.addEventListener("readystatechange", listener, false);
+    };
+
+    // Tells Java as soon as the page is unloaded, so that it injects this
+    // script in the next page without waiting for an error (old browsers
+    // without addEventListener rely on the error):
+    if (window.addEventListener) {
+        window.addEventListener("pagehide", function () {
+            if (notifyJava) {
+                var fn = notifyJava;
+                notifyJava = null;
+                fn({
+                    unloading : true
+                });
+            }
+        }, false);
+    }
+
     SeleniumJavaRobot = window.SeleniumJavaRobot = {
-        __getInfo : function (expectsStatus, cb) {
+        __getInfo : function (expectsStatus, channelInfo, cb) {
             if (expectsStatus) {
-                cb();
+                whenDocumentReady(cb);
+            } else if (channel) {
+                // calls are sent through the channel, Java only checks that
+                // this script is still in the page
+                cb(null);
             } else {
                 notifyJava = cb;
                 notifyJavaIfNeeded();
             }
         },
-        __callback : function (callId, success, result) {
+        // Returns true if the result was given to the caller of the call.
+        __callback : function (callId, success, result, events, expired, verifyOffset) {
             var curCall = calls[0];
-            if (curCall && calls[0].call.id == callId) {
+            if (curCall && verifyOffset && curCall.call.id == callId) {
+                // Java did not execute the call, it is sent again once the
+                // offset is verified
+                curCall.sent = false;
+                calls.unshift(createVerifyOffsetCall());
+                if (channel) {
+                    notifyJavaIfNeeded();
+                }
+            } else if (curCall && calls[0].call.id == callId) {
                 calls.shift();
-                var curCallback = curCall.callback;
-                if (typeof curCallback == "function") {
-                    curCallback = {
-                        fn : curCallback
-                    };
+                clearTimeout(curCall.timer);
+                if (events && !curCall.aborted) {
+                    // the events of an aborted call are not dispatched, as
+                    // its caller no longer expects them
+                    dispatchSyntheticEvents(events);
                 }
-                if (curCallback && typeof curCallback.fn == "function") {
-                    curCallback.fn.call(curCallback.scope, {
-                        success : success,
-                        result : result
-                    }, curCallback.args);
+                try {
+                    if (!curCall.aborted) {
+                        var response = {
+                            success : success,
+                            result : result
+                        };
+                        if (expired) {
+                            response.expired = true;
+                        }
+                        callCallback(curCall, response);
+                        return true;
+                    }
+                } finally {
+                    if (channel) {
+                        notifyJavaIfNeeded();
+                    }
                 }
             }
+            return false;
+        },
+        // Called by Java while it executes a call, to stop it if the page
+        // gave it up.
+        __isCancelled : function (callId) {
+            var curCall = calls[0];
+            return !!(curCall && curCall.call.id == callId && curCall.aborted);
+        },
+        cancel : function (callId) {
+            for (var i = 0, l = calls.length; i < l; i++) {
+                if (calls[i].call.id == callId && !calls[i].aborted) {
+                    try {
+                        abortCall(calls[i], false);
+                    } finally {
+                        notifyJavaIfNeeded();
+                    }
+                    return true;
+                }
+            }
+            return false;
         }
     };
 
+    var getScreenPosition = function () {
+        return {
+            x : window.screenX != null ? window.screenX : window.screenLeft,
+            y : window.screenY != null ? window.screenY : window.screenTop
+        };
+    };
+
     var createFunction = function (name, argsNumber) {
         return SeleniumJavaRobot[name] = function () {
             var curCallId = "c" + callIds;
             callIds++;
-            calls.push({
+            var curCall = {
                 call : {
                     name : name,
                     id : curCallId,
-                    args : slice.call(arguments, 0, argsNumber)
+                    args : slice.call(arguments, 0, argsNumber),
+                    // allows Java to know when the window has moved:
+                    screen : getScreenPosition()
                 },
                 callback : arguments[argsNumber]
-            });
+            };
+            var options = arguments[argsNumber + 1];
+            if (options && options.timeout != null) {
+                curCall.deadline = new Date().getTime() + options.timeout;
+                curCall.timer = setTimeout(function () {
+                    try {
+                        abortCall(curCall, true);
+                    } finally {
+                        notifyJavaIfNeeded();
+                    }
+                }, options.timeout);
+            }
+            calls.push(curCall);
             notifyJavaIfNeeded();
+            return curCallId;
         };
     };
 
@@ -82,6 +528,21 @@ if (!SeleniumJavaRobot) {
     createFunction("keyPress", 1);
     createFunction("keyRelease", 1);
     createFunction("getOffset", 0);
+    createFunction("captureRegion", 5);
+    createFunction("findImage", 6);
+    createFunction("compareRegion", 6);
+    createFunction("dumpRecording", 1);
+    createFunction("waitForScreenStable", 6);
+    createFunction("waitForPixelChange", 5);
 }
 
+if (newPage && !arguments[0]) {
+    // the previous page was unloaded while Java was not waiting (which
+    // happens with the channel): the unload is announced now, so that Java
+    // waits for this page to be ready
+    arguments[2]({
+        unloading : true
+    });
+    return;
+}
 return SeleniumJavaRobot.__getInfo.apply(SeleniumJavaRobot, arguments);
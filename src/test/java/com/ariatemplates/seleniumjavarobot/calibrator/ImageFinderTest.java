@@ -0,0 +1,165 @@
+/*
+ * Copyright 2014 Amadeus s.a.s.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ariatemplates.seleniumjavarobot.calibrator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.awt.Rectangle;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ImageFinderTest {
+    private static int[] createNoise(int width, int height, long seed) {
+        Random random = new Random(seed);
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt(0x1000000);
+        }
+        return pixels;
+    }
+
+    // Gradient with solid rectangles, which keeps its shapes when it is
+    // reduced (as most screen content).
+    private static int[] createShapes(int width, int height, long seed) {
+        Random random = new Random(seed);
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                pixels[y * width + x] = ((x * 255 / width) << 16) | ((y * 255 / height) << 8) | 0x80;
+            }
+        }
+        for (int i = 0; i < 40; i++) {
+            int rectX = random.nextInt(width - 20);
+            int rectY = random.nextInt(height - 20);
+            int rectWidth = 5 + random.nextInt(Math.min(40, width - rectX - 5));
+            int rectHeight = 5 + random.nextInt(Math.min(40, height - rectY - 5));
+            int color = random.nextInt(0x1000000);
+            for (int y = rectY; y < rectY + rectHeight; y++) {
+                for (int x = rectX; x < rectX + rectWidth; x++) {
+                    pixels[y * width + x] = color;
+                }
+            }
+        }
+        return pixels;
+    }
+
+    private static int[] crop(int[] pixels, int width, Rectangle part) {
+        int[] result = new int[part.width * part.height];
+        for (int y = 0; y < part.height; y++) {
+            System.arraycopy(pixels, (part.y + y) * width + part.x, result, y * part.width, part.width);
+        }
+        return result;
+    }
+
+    private static Rectangle find(int[] pixels, int width, int height, int[] template, Rectangle expected, int tolerance)
+            throws InterruptedException {
+        return ImageFinder.findImage(pixels, width, height, template, expected.width, expected.height, tolerance);
+    }
+
+    @Test
+    public void testSmallTemplate() throws InterruptedException {
+        // too small to be reduced: all the positions are checked
+        int[] pixels = createNoise(100, 80, 1);
+        Rectangle expected = new Rectangle(37, 21, 10, 12);
+        assertEquals(expected, find(pixels, 100, 80, crop(pixels, 100, expected), expected, 0));
+    }
+
+    @Test
+    public void testPyramidAtOddPosition() throws InterruptedException {
+        // the template (reduced twice) is not aligned with the pixels of the
+        // reduced images
+        int[] pixels = createShapes(300, 200, 2);
+        Rectangle expected = new Rectangle(131, 77, 70, 66);
+        assertEquals(expected, find(pixels, 300, 200, crop(pixels, 300, expected), expected, 0));
+    }
+
+    @Test
+    public void testPyramidWithNoise() throws InterruptedException {
+        // the reduced images are misleading: the original images give the
+        // result
+        int[] pixels = createNoise(160, 120, 3);
+        Rectangle expected = new Rectangle(45, 63, 40, 34);
+        assertEquals(expected, find(pixels, 160, 120, crop(pixels, 160, expected), expected, 0));
+    }
+
+    @Test
+    public void testRepetitiveContent() throws InterruptedException {
+        // stripes, with one different pixel in the template
+        int width = 200;
+        int height = 100;
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (i % width) % 8 < 4 ? 0xffffff : 0;
+        }
+        pixels[50 * width + 121] = 0xff0000;
+        Rectangle expected = new Rectangle(100, 30, 40, 40);
+        assertEquals(expected, find(pixels, width, height, crop(pixels, width, expected), expected, 0));
+    }
+
+    @Test
+    public void testTolerance() throws InterruptedException {
+        int[] pixels = createShapes(200, 150, 4);
+        Rectangle expected = new Rectangle(57, 43, 48, 36);
+        int[] template = crop(pixels, 200, expected);
+        Random random = new Random(5);
+        for (int i = 0; i < template.length; i++) {
+            // changes each component by 1 to 5, without overflowing
+            int delta = 1 + random.nextInt(5);
+            int pixel = template[i];
+            int r = Math.min(255, ((pixel >> 16) & 0xff) + delta);
+            int g = Math.max(0, ((pixel >> 8) & 0xff) - delta);
+            int b = Math.min(255, (pixel & 0xff) + delta);
+            template[i] = (r << 16) | (g << 8) | b;
+        }
+        assertNull(find(pixels, 200, 150, template, expected, 0));
+        assertEquals(expected, find(pixels, 200, 150, template, expected, 5));
+    }
+
+    @Test
+    public void testNotFound() throws InterruptedException {
+        int[] pixels = createNoise(120, 90, 6);
+        int[] template = createNoise(20, 20, 7);
+        assertNull(find(pixels, 120, 90, template, new Rectangle(0, 0, 20, 20), 10));
+        // bigger than the image:
+        assertNull(find(pixels, 120, 90, createNoise(130, 10, 8), new Rectangle(0, 0, 130, 10), 10));
+    }
+
+    @Test
+    public void testIntegralImageOverflow() throws InterruptedException {
+        // the sums of the integral image of a big white image do not fit in
+        // an int, the sums of the areas of the template still do
+        int width = 2048;
+        int height = 1600;
+        int[] pixels = new int[width * height + 100];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0xffffff;
+        }
+        Rectangle expected = new Rectangle(1900, 1500, 64, 64);
+        for (int y = expected.y + 10; y < expected.y + 30; y++) {
+            for (int x = expected.x + 20; x < expected.x + 50; x++) {
+                pixels[y * width + x] = 0x204060;
+            }
+        }
+        assertEquals(expected, find(pixels, width, height, crop(pixels, width, expected), expected, 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidTolerance() throws InterruptedException {
+        int[] pixels = createNoise(10, 10, 9);
+        ImageFinder.findImage(pixels, 10, 10, pixels, 10, 10, 256);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2014 Amadeus s.a.s.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ariatemplates.seleniumjavarobot.capture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class BufferPoolTest {
+    // a third of the size of the pool, in bytes:
+    private static final int BIG_SIZE = 12 * 1024 * 1024;
+
+    @Test
+    public void testSmallestBufferIsReused() {
+        BufferPool pool = new BufferPool();
+        int[] small = new int[100];
+        int[] big = new int[1000];
+        pool.release(big);
+        pool.release(small);
+        assertSame(small, pool.getIntBuffer(50));
+        assertSame(big, pool.getIntBuffer(50));
+        assertEquals(50, pool.getIntBuffer(50).length);
+    }
+
+    @Test
+    public void testIntAndByteBuffersAreSeparate() {
+        BufferPool pool = new BufferPool();
+        byte[] bytes = new byte[100];
+        pool.release(bytes);
+        assertEquals(100, pool.getIntBuffer(100).length);
+        assertSame(bytes, pool.getByteBuffer(100));
+    }
+
+    @Test
+    public void testTooBigBufferIsNotKept() {
+        BufferPool pool = new BufferPool();
+        byte[] buffer = new byte[3 * BIG_SIZE];
+        pool.release(buffer);
+        assertNotSame(buffer, pool.getByteBuffer(3 * BIG_SIZE));
+    }
+
+    @Test
+    public void testOldestBuffersAreDroppedWhenFull() {
+        BufferPool pool = new BufferPool();
+        byte[] first = new byte[BIG_SIZE];
+        byte[] second = new byte[BIG_SIZE];
+        // counted as 4 bytes per int:
+        int[] third = new int[BIG_SIZE / 4];
+        pool.release(first);
+        pool.release(second);
+        pool.release(third);
+        assertSame(second, pool.getByteBuffer(BIG_SIZE));
+        assertNotSame(first, pool.getByteBuffer(BIG_SIZE));
+        assertSame(third, pool.getIntBuffer(BIG_SIZE / 4));
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2014 Amadeus s.a.s.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ariatemplates.seleniumjavarobot.capture;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class ImageComparatorTest {
+    private static final int WIDTH = 20;
+    private static final int HEIGHT = 10;
+
+    // Black on the left, white on the right (from x = 10).
+    private static int[] createEdge() {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = i % WIDTH < 10 ? 0 : 0xffffff;
+        }
+        return pixels;
+    }
+
+    private static int[] compare(int[] image1, int[] image2, int tolerance, boolean ignoreAntialiasing, int[] diff) throws InterruptedException {
+        return ImageComparator.compare(image1, image2, WIDTH, HEIGHT, tolerance, ignoreAntialiasing, diff);
+    }
+
+    @Test
+    public void testIdenticalImages() throws InterruptedException {
+        assertArrayEquals(new int[] { 0, 0 }, compare(createEdge(), createEdge(), 0, true, null));
+    }
+
+    @Test
+    public void testTolerance() throws InterruptedException {
+        int[] image1 = new int[WIDTH * HEIGHT];
+        int[] image2 = new int[WIDTH * HEIGHT];
+        Arrays.fill(image1, 0x808080);
+        Arrays.fill(image2, 0x808080);
+        // only the green component is different
+        image2[5 * WIDTH + 5] = 0x808580;
+        assertArrayEquals(new int[] { 0, 0 }, compare(image1, image2, 5, true, null));
+        assertArrayEquals(new int[] { 1, 0 }, compare(image1, image2, 4, true, null));
+    }
+
+    @Test
+    public void testAntialiasedEdge() throws InterruptedException {
+        int[] image1 = createEdge();
+        int[] image2 = createEdge();
+        // the edge is smoothed in the second image: its pixels are between
+        // the uniform black and white areas
+        for (int y = 0; y < HEIGHT; y++) {
+            image2[y * WIDTH + 10] = 0x808080;
+        }
+        assertArrayEquals(new int[] { 0, HEIGHT }, compare(image1, image2, 0, true, null));
+        assertArrayEquals(new int[] { HEIGHT, HEIGHT }, compare(image1, image2, 0, false, null));
+    }
+
+    @Test
+    public void testChangedPixelIsNotAntialiasing() throws InterruptedException {
+        int[] image1 = createEdge();
+        int[] image2 = createEdge();
+        // alone in the white area, it has no brighter neighbour
+        image2[5 * WIDTH + 15] = 0x404040;
+        assertArrayEquals(new int[] { 1, 0 }, compare(image1, image2, 0, true, null));
+    }
+
+    @Test
+    public void testDiffImage() throws InterruptedException {
+        int[] image1 = createEdge();
+        // bigger than the image, as pooled buffers
+        int[] image2 = Arrays.copyOf(createEdge(), WIDTH * HEIGHT + 10);
+        image2[10] = 0x808080;
+        image2[5 * WIDTH + 15] = 0x404040;
+        int[] diff = new int[WIDTH * HEIGHT];
+        assertArrayEquals(new int[] { 1, 1 }, compare(image1, image2, 0, true, diff));
+        assertEquals(0xffff00, diff[10]);
+        assertEquals(0xff0000, diff[5 * WIDTH + 15]);
+        // unchanged pixels are faded
+        assertEquals(0xe6e6e6, diff[0]);
+        assertEquals(0xffffff, diff[WIDTH - 1]);
+    }
+}
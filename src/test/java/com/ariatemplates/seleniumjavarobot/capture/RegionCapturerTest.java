@@ -0,0 +1,122 @@
+/*
+ * Copyright 2014 Amadeus s.a.s.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ariatemplates.seleniumjavarobot.capture;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+
+import com.ariatemplates.seleniumjavarobot.IRobot;
+
+public class RegionCapturerTest {
+    // Robot whose screen is an image of 70 x 40 pixels (3 x 2 tiles),
+    // wherever the region is.
+    private static class ImageRobot implements IRobot {
+        final BufferedImage image = new BufferedImage(70, 40, BufferedImage.TYPE_INT_RGB);
+
+        public BufferedImage createScreenCapture(Rectangle screenRect) {
+            BufferedImage result = new BufferedImage(screenRect.width, screenRect.height, BufferedImage.TYPE_INT_RGB);
+            result.setRGB(0, 0, screenRect.width, screenRect.height, image.getRGB(0, 0, screenRect.width, screenRect.height, null, 0, screenRect.width),
+                    0, screenRect.width);
+            return result;
+        }
+
+        public void keyPress(int keycode) {
+        }
+
+        public void keyRelease(int keycode) {
+        }
+
+        public void mouseMove(int x, int y) {
+        }
+
+        public void mousePress(int buttons) {
+        }
+
+        public void mouseRelease(int buttons) {
+        }
+
+        public void mouseWheel(int wheelAmt) {
+        }
+
+        public void sync() {
+        }
+    }
+
+    private final ImageRobot robot = new ImageRobot();
+    private final RegionCapturer capturer = new RegionCapturer();
+    private final Rectangle viewportRegion = new Rectangle(10, 20, 70, 40);
+
+    private Map<String, Object> captureDelta(int windowX, int windowY, boolean delivered) throws IOException {
+        Rectangle screenRect = new Rectangle(viewportRegion);
+        screenRect.translate(windowX, windowY);
+        Map<String, Object> result = capturer.capture(robot, screenRect, viewportRegion, RegionCapturer.FORMAT_DELTA, null);
+        capturer.endCall(delivered);
+        return result;
+    }
+
+    private static int getTilesCount(Map<String, Object> result) {
+        return ((List<?>) result.get("tiles")).size();
+    }
+
+    @Test
+    public void testOnlyChangedTilesAreSent() throws IOException {
+        assertEquals(6, getTilesCount(captureDelta(0, 0, true)));
+        assertEquals(0, getTilesCount(captureDelta(0, 0, true)));
+        robot.image.setRGB(69, 39, 0x123456);
+        Map<String, Object> result = captureDelta(0, 0, true);
+        assertEquals(1, getTilesCount(result));
+        Map<?, ?> tile = (Map<?, ?>) ((List<?>) result.get("tiles")).get(0);
+        assertEquals(64, tile.get("x"));
+        assertEquals(32, tile.get("y"));
+        assertEquals(6, tile.get("width"));
+        assertEquals(8, tile.get("height"));
+        byte[] data = Base64.decodeBase64((String) result.get("data"));
+        assertEquals(6 * 8 * 3, data.length);
+        // last pixel of the tile:
+        assertArrayEquals(new byte[] { 0x12, 0x34, 0x56 }, new byte[] { data[data.length - 3], data[data.length - 2], data[data.length - 1] });
+    }
+
+    @Test
+    public void testMovedWindowKeepsTheBase() throws IOException {
+        captureDelta(0, 0, true);
+        assertEquals(0, getTilesCount(captureDelta(100, 50, true)));
+    }
+
+    @Test
+    public void testUndeliveredCaptureDoesNotChangeTheBase() throws IOException {
+        captureDelta(0, 0, true);
+        robot.image.setRGB(0, 0, 0xffffff);
+        assertEquals(1, getTilesCount(captureDelta(0, 0, false)));
+        assertEquals(1, getTilesCount(captureDelta(0, 0, true)));
+        assertEquals(0, getTilesCount(captureDelta(0, 0, true)));
+    }
+
+    @Test
+    public void testRawDataIsNotChunked() throws IOException {
+        Map<String, Object> result = capturer.capture(robot, viewportRegion, viewportRegion, RegionCapturer.FORMAT_RAW, null);
+        String data = (String) result.get("data");
+        assertEquals(-1, data.indexOf('\n'));
+        assertEquals(70 * 40 * 3, Base64.decodeBase64(data).length);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 Amadeus s.a.s.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ariatemplates.seleniumjavarobot.capture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class TileHasherTest {
+    private static int[] createImage(int width, int height) {
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (i * 7919) & 0xffffff;
+        }
+        return pixels;
+    }
+
+    @Test
+    public void testTilesCount() {
+        // tiles on the right and bottom edges are smaller
+        assertEquals(3, TileHasher.getColumns(70, 32));
+        assertEquals(2, TileHasher.getColumns(64, 32));
+        assertEquals(6, TileHasher.getTilesCount(70, 40, 32));
+        assertEquals(6, TileHasher.hashTiles(createImage(70, 40), 70, 40, 32, null).length);
+    }
+
+    @Test
+    public void testTileHashIsTheHashOfItsPixels() {
+        int width = 70;
+        int height = 40;
+        int[] pixels = createImage(width, height);
+        long[] hashes = TileHasher.hashTiles(pixels, width, height, 32, null);
+        // bottom right tile (6 x 8 pixels), row by row:
+        int[] tile = new int[6 * 8];
+        for (int y = 0; y < 8; y++) {
+            System.arraycopy(pixels, (32 + y) * width + 64, tile, y * 6, 6);
+        }
+        assertEquals(TileHasher.hash(tile, tile.length), hashes[5]);
+    }
+
+    @Test
+    public void testDeltaOnlyChangesTheModifiedTile() {
+        int width = 70;
+        int height = 40;
+        int[] pixels = createImage(width, height);
+        long[] before = TileHasher.hashTiles(pixels, width, height, 32, null);
+        // in the second tile of the second row
+        pixels[35 * width + 40] ^= 0x010000;
+        long[] after = TileHasher.hashTiles(pixels, width, height, 32, null);
+        for (int i = 0; i < before.length; i++) {
+            if (i == 4) {
+                assertNotEquals(before[i], after[i]);
+            } else {
+                assertEquals(before[i], after[i]);
+            }
+        }
+    }
+
+    @Test
+    public void testAlphaIsIgnored() {
+        int[] pixels = createImage(40, 40);
+        long[] hashes = TileHasher.hashTiles(pixels, 40, 40, 32, null);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] |= 0xff000000;
+        }
+        long[] opaqueHashes = TileHasher.hashTiles(pixels, 40, 40, 32, null);
+        for (int i = 0; i < hashes.length; i++) {
+            assertEquals(hashes[i], opaqueHashes[i]);
+        }
+    }
+
+    @Test
+    public void testHashesArrayIsReused() {
+        long[] hashes = new long[10];
+        assertSame(hashes, TileHasher.hashTiles(createImage(64, 64), 64, 64, 32, hashes));
+    }
+}